@@ -53,6 +53,9 @@ public final class Interrupt {
 
 		enabled = false;
 		pending = new TreeSet<PendingInterrupt>();
+
+		if (Config.getBoolean("Interrupt.profile", false))
+			profiler = new InterruptProfiler(privilege);
 	}
 
 	/**
@@ -95,6 +98,13 @@ public final class Interrupt {
 		boolean oldStatus = enabled;
 		enabled = status;
 
+		if (profiler != null && oldStatus != status) {
+			if (status)
+				profiler.enabled();
+			else
+				profiler.disabled();
+		}
+
 		if (oldStatus == false && status == true)
 			tick(true);
 
@@ -119,6 +129,15 @@ public final class Interrupt {
 		return !enabled;
 	}
 
+	/**
+	 * Print the report of the interrupts-disabled profiler, if
+	 * <tt>Interrupt.profile</tt> is set.
+	 */
+	public void printProfile() {
+		if (profiler != null)
+			profiler.print();
+	}
+
 	private void schedule(long when, String type, Runnable handler) {
 		Lib.assertTrue(when > 0);
 
@@ -240,6 +259,8 @@ public final class Interrupt {
 
 	private TreeSet<PendingInterrupt> pending;
 
+	private InterruptProfiler profiler = null;
+
 	private static final char dbgInt = 'i';
 
 	private class InterruptPrivilege implements Privilege.InterruptPrivilege {
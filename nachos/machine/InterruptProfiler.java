@@ -0,0 +1,150 @@
+package nachos.machine;
+
+import nachos.security.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+
+/**
+ * Measures how long interrupts stay disabled. <tt>Interrupt</tt> calls
+ * <tt>disabled()</tt> when interrupts go from enabled to disabled and
+ * <tt>enabled()</tt> when they come back on, and the profiler charges the
+ * interval to the code that disabled them.
+ *
+ * <p>
+ * Each interval is measured both in simulated ticks and in host nanoseconds.
+ * Simulated time only advances while interrupts are enabled, so the simulated
+ * duration is almost always 0 and the host duration is the one to look at.
+ * An interval that spans a context switch is charged to the thread that
+ * disabled interrupts.
+ *
+ * <p>
+ * The profiler is only created if <tt>Interrupt.profile</tt> is set; otherwise
+ * <tt>Interrupt</tt> pays one null check per status change. The report is
+ * printed when the machine halts.
+ */
+final class InterruptProfiler {
+	InterruptProfiler(Privilege privilege) {
+		this.privilege = privilege;
+	}
+
+	/**
+	 * Called when interrupts go from enabled to disabled.
+	 */
+	void disabled() {
+		site = callerSite();
+		startTicks = privilege.stats.totalTicks;
+		startNanos = System.nanoTime();
+	}
+
+	/**
+	 * Called when interrupts go from disabled to enabled, before simulated time
+	 * advances.
+	 */
+	void enabled() {
+		if (site == null)
+			return;
+
+		long ticks = privilege.stats.totalTicks - startTicks;
+		long nanos = System.nanoTime() - startNanos;
+
+		Site s = sites.get(site);
+		if (s == null) {
+			s = new Site(site);
+			sites.put(site, s);
+		}
+		s.count++;
+		s.totalTicks += ticks;
+		s.maxTicks = Math.max(s.maxTicks, ticks);
+		s.totalNanos += nanos;
+		s.maxNanos = Math.max(s.maxNanos, nanos);
+
+		int bucket = 0;
+		while (bucket < histogram.length - 1 && (nanos >> (bucket + 10)) > 0)
+			bucket++;
+		histogram[bucket]++;
+
+		site = null;
+	}
+
+	/**
+	 * Print the sites with the longest sections and a histogram of section
+	 * lengths.
+	 */
+	void print() {
+		ArrayList<Site> worst = new ArrayList<Site>(sites.values());
+		Collections.sort(worst, new Comparator<Site>() {
+			public int compare(Site a, Site b) {
+				if (a.maxTicks != b.maxTicks)
+					return a.maxTicks > b.maxTicks ? -1 : 1;
+				return Long.compare(b.maxNanos, a.maxNanos);
+			}
+		});
+
+		System.out.println("Interrupts disabled, worst "
+				+ Math.min(numWorst, worst.size()) + " of "
+				+ worst.size() + " sites (max ticks, max us, count, total us):");
+		for (int i = 0; i < worst.size() && i < numWorst; i++) {
+			Site s = worst.get(i);
+			System.out.println("  " + s.maxTicks + "\t" + s.maxNanos / 1000
+					+ "\t" + s.count + "\t" + s.totalNanos / 1000 + "\t"
+					+ s.name);
+		}
+
+		System.out.println("Interrupts disabled, host time histogram:");
+		for (int i = 0; i < histogram.length; i++) {
+			if (histogram[i] == 0)
+				continue;
+			String range = i == 0 ? "< 1 us" : (i == histogram.length - 1 ? ">= "
+					+ (1 << (i - 1)) + " us" : (1 << (i - 1)) + "-"
+					+ (1 << i) + " us");
+			System.out.println("  " + range + ": " + histogram[i]);
+		}
+	}
+
+	/**
+	 * Return the first stack frame outside the interrupt controller, which is
+	 * the code that disabled interrupts.
+	 */
+	private static String callerSite() {
+		StackTraceElement[] trace = new Throwable().getStackTrace();
+		for (StackTraceElement frame : trace) {
+			String cls = frame.getClassName();
+			if (!cls.equals(Interrupt.class.getName())
+					&& !cls.equals(InterruptProfiler.class.getName()))
+				return cls + "." + frame.getMethodName() + ":"
+						+ frame.getLineNumber();
+		}
+		return "(unknown)";
+	}
+
+	/** Totals for one place in the code that disables interrupts. */
+	private static class Site {
+		Site(String name) {
+			this.name = name;
+		}
+
+		String name;
+
+		long count = 0;
+
+		long totalTicks = 0, maxTicks = 0;
+
+		long totalNanos = 0, maxNanos = 0;
+	}
+
+	private static final int numWorst = 10;
+
+	private Privilege privilege;
+
+	private HashMap<String, Site> sites = new HashMap<String, Site>();
+
+	/** Bucket 0 is under 1 us, bucket i covers 2^(i-1) to 2^i us. */
+	private long[] histogram = new long[20];
+
+	private String site = null;
+
+	private long startTicks, startNanos;
+}
@@ -109,6 +109,7 @@ public final class Machine {
 	public static void halt() {
 		System.out.print("Machine halting!\n\n");
 		stats.print();
+		interrupt.printProfile();
 		terminate();
 	}
 
@@ -323,6 +324,15 @@ public final class Machine {
 		return timer;
 	}
 
+	/**
+	 * Return the statistics counters, for the kernel counters kept there.
+	 * 
+	 * @return the statistics counters.
+	 */
+	public static Stats stats() {
+		return stats;
+	}
+
 	/**
 	 * Return the hardware elevator bank.
 	 * 
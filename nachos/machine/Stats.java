@@ -29,6 +29,8 @@ public final class Stats {
 		System.out.println("Swap: COFF reads " + numCOFFReads
 				+ ", swap reads " + numSwapReads
 			        + ", swap writes " + numSwapWrites);
+		System.out.println("Zero fill: pre-zeroed " + numZeroFillHits
+				+ ", zeroed on fault " + numZeroFillMisses);
 		System.out.println("Network I/O: received " + numPacketsReceived
 				+ ", sent " + numPacketsSent);
 	}
@@ -75,6 +77,12 @@ public final class Stats {
         /** The total number of pages written to swap. */
         public int numSwapWrites = 0;
 
+	/** The number of zero-fill faults given an already zeroed frame. */
+	public int numZeroFillHits = 0;
+
+	/** The number of zero-fill faults that had to zero a frame. */
+	public int numZeroFillMisses = 0;
+
 	/** The total number of packets Nachos has sent to the network. */
 	public int numPacketsSent = 0;
 
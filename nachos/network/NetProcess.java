@@ -18,9 +18,13 @@ public class NetProcess extends VMProcess {
 
 	private static final int syscallConnect = 11, syscallAccept = 12;
 
+	protected SyscallTable getSyscallTable() {
+		return syscalls;
+	}
+
 	/**
-	 * Handle a syscall exception. Called by <tt>handleException()</tt>. The
-	 * <i>syscall</i> argument identifies which syscall the user executed:
+	 * The syscalls of a <tt>VMProcess</tt>, plus these once they are
+	 * implemented:
 	 * 
 	 * <table>
 	 * <tr>
@@ -36,18 +40,7 @@ public class NetProcess extends VMProcess {
 	 * <td><tt>int  accept(int port);</tt></td>
 	 * </tr>
 	 * </table>
-	 * 
-	 * @param syscall the syscall number.
-	 * @param a0 the first syscall argument.
-	 * @param a1 the second syscall argument.
-	 * @param a2 the third syscall argument.
-	 * @param a3 the fourth syscall argument.
-	 * @return the value to be returned to the user.
 	 */
-	public int handleSyscall(int syscall, int a0, int a1, int a2, int a3) {
-		switch (syscall) {
-		default:
-			return super.handleSyscall(syscall, a0, a1, a2, a3);
-		}
-	}
+	protected static final SyscallTable syscalls = new SyscallTable(
+			VMProcess.syscalls);
 }
@@ -3,6 +3,8 @@ package nachos.network;
 import nachos.machine.*;
 import nachos.threads.*;
 
+import java.util.LinkedList;
+
 /**
  * A collection of message queues, one for each local port. A
  * <tt>PostOffice</tt> interacts directly with the network hardware. Because of
@@ -14,6 +16,11 @@ import nachos.threads.*;
  * from the network and to place them in the appropriate queues. This cannot be
  * done in the receive interrupt handler because each queue (implemented with a
  * <tt>SynchList</tt>) is protected by a lock.
+ *
+ * <p>
+ * Mailboxes may be bounded by setting <tt>PostOffice.mailboxCapacity</tt>. A
+ * message for a full mailbox is dropped rather than stalling delivery to every
+ * other port; the network is allowed to lose messages anyway.
  */
 public class PostOffice {
 	/**
@@ -26,9 +33,10 @@ public class PostOffice {
 		messageSent = new Semaphore(0);
 		sendLock = new Lock();
 
+		int capacity = Config.getInteger("PostOffice.mailboxCapacity", 0);
 		queues = new SynchList[MailMessage.portLimit];
 		for (int i = 0; i < queues.length; i++)
-			queues[i] = new SynchList();
+			queues[i] = new SynchList(capacity);
 
 		Runnable receiveHandler = new Runnable() {
 			public void run() {
@@ -71,6 +79,39 @@ public class PostOffice {
 		return mail;
 	}
 
+	/**
+	 * Retrieve up to <tt>mail.length</tt> messages on the specified port,
+	 * waiting only if no message is queued. All messages already queued after
+	 * the first are taken under a single acquisition of the mailbox lock.
+	 * 
+	 * @param port the port on which to wait for messages.
+	 * @param mail the array where the received messages are stored.
+	 * 
+	 * @return the number of messages received.
+	 */
+	public int receive(int port, MailMessage[] mail) {
+		Lib.assertTrue(port >= 0 && port < queues.length);
+
+		if (mail.length == 0)
+			return 0;
+
+		Lib.debug(dbgNet, "waiting for mail on port " + port);
+
+		mail[0] = (MailMessage) queues[port].removeFirst();
+
+		LinkedList<Object> rest = new LinkedList<Object>();
+		queues[port].drainTo(rest, mail.length - 1);
+
+		int count = 1;
+		for (Object o : rest)
+			mail[count++] = (MailMessage) o;
+
+		if (Lib.test(dbgNet))
+			System.out.println("got " + count + " messages on port " + port);
+
+		return count;
+	}
+
 	/**
 	 * Wait for incoming messages, and then put them in the correct mailbox.
 	 */
@@ -93,8 +134,10 @@ public class PostOffice {
 				System.out.println("delivering mail to port " + mail.dstPort
 						+ ": " + mail);
 
-			// atomically add message to the mailbox and wake a waiting thread
-			queues[mail.dstPort].add(mail);
+			// atomically add message to the mailbox and wake a waiting thread,
+			// dropping it if the mailbox is full
+			if (!queues[mail.dstPort].offer(mail))
+				Lib.debug(dbgNet, "mailbox " + mail.dstPort + " full, dropped mail");
 		}
 	}
 
@@ -0,0 +1,76 @@
+/*
+ * fork1.c
+ *
+ * Test fork() and copy-on-write under memory pressure.  The parent fills
+ * an array twice the size of physical memory (with the default 16 pages)
+ * and forks.  The child overwrites every page and checks it sees its own
+ * values; the parent checks it still sees the original ones, both while
+ * the child runs and after joining it.  Pages are swapped out and back in
+ * while they are still shared.
+ */
+
+#include "syscall.h"
+
+#define PAGES		32
+#define INTS_PER_PAGE	(1024 / sizeof (int))
+
+int data[PAGES * INTS_PER_PAGE];
+
+static int
+check (int base, char *who)
+{
+    int i;
+
+    for (i = 0; i < PAGES * INTS_PER_PAGE; i++) {
+	if (data[i] != base + i) {
+	    printf ("%s: data[%d] = %d, expected %d\n", who, i, data[i], base + i);
+	    return -1;
+	}
+    }
+    return 0;
+}
+
+int
+main (int argc, char *argv[])
+{
+    int i, pid, r, status = 0;
+
+    for (i = 0; i < PAGES * INTS_PER_PAGE; i++)
+	data[i] = i;
+
+    printf ("forking...\n");
+    pid = fork ();
+    if (pid < 0) {
+	printf ("...failed (pid = %d)\n", pid);
+	exit (-1);
+    }
+
+    if (pid == 0) {
+	// the child writes every page, copying each one
+	for (i = 0; i < PAGES * INTS_PER_PAGE; i++)
+	    data[i] = 1000000 + i;
+	exit (check (1000000, "child") == 0 ? 17 : -1);
+    }
+
+    if (check (0, "parent before join") != 0)
+	exit (-1);
+
+    printf ("joining %d...\n", pid);
+    r = join (pid, &status);
+    if (r != 1 || status != 17) {
+	printf ("...failed (r = %d, status = %d)\n", r, status);
+	exit (-1);
+    }
+
+    if (check (0, "parent after join") != 0)
+	exit (-1);
+
+    // the parent's pages are private again, and writable
+    for (i = 0; i < PAGES * INTS_PER_PAGE; i++)
+	data[i] = 2000000 + i;
+    if (check (2000000, "parent after writing") != 0)
+	exit (-1);
+
+    printf ("...passed\n");
+    return 0;
+}
@@ -0,0 +1,82 @@
+/*
+ * munmap1.c
+ *
+ * Test mmap() and munmap() under memory pressure.  Maps a file larger
+ * than physical memory (with the default 16 pages), writes every page
+ * through the map so dirty pages are evicted back to the file, unmaps it,
+ * and reads the file back with read() to check every byte arrived.
+ */
+
+#include "syscall.h"
+
+#define PAGES		40
+#define PAGE_SIZE	1024
+#define MAP_ADDRESS	((char *) 0x100000)
+
+char buf[PAGE_SIZE];
+
+int
+main (int argc, char *argv[])
+{
+    char *name = "munmap1.dat";
+    int fd, i, j, r;
+
+    fd = creat (name);
+    if (fd < 0) {
+	printf ("failed to create %s\n", name);
+	exit (-1);
+    }
+    // give the file its length, all zeroes
+    for (i = 0; i < PAGES; i++) {
+	if (write (fd, buf, PAGE_SIZE) != PAGE_SIZE) {
+	    printf ("failed to write page %d of %s\n", i, name);
+	    exit (-1);
+	}
+    }
+
+    r = mmap (fd, MAP_ADDRESS);
+    if (r != PAGES * PAGE_SIZE) {
+	printf ("mmap failed (r = %d)\n", r);
+	exit (-1);
+    }
+    if (read (fd, buf, 1) != -1) {
+	printf ("read() on a mapped file descriptor should fail\n");
+	exit (-1);
+    }
+
+    for (i = 0; i < PAGES * PAGE_SIZE; i++)
+	MAP_ADDRESS[i] = (char) (i % 251);
+    // touch the pages again, after most have been evicted
+    for (i = 0; i < PAGES * PAGE_SIZE; i += PAGE_SIZE) {
+	if (MAP_ADDRESS[i] != (char) (i % 251)) {
+	    printf ("map byte %d lost before munmap\n", i);
+	    exit (-1);
+	}
+    }
+
+    r = munmap (MAP_ADDRESS);
+    if (r != 0) {
+	printf ("munmap failed (r = %d)\n", r);
+	exit (-1);
+    }
+    close (fd);
+
+    fd = open (name);
+    for (i = 0; i < PAGES; i++) {
+	if (read (fd, buf, PAGE_SIZE) != PAGE_SIZE) {
+	    printf ("failed to read page %d back\n", i);
+	    exit (-1);
+	}
+	for (j = 0; j < PAGE_SIZE; j++) {
+	    if (buf[j] != (char) ((i * PAGE_SIZE + j) % 251)) {
+		printf ("byte %d of the file is %d\n", i * PAGE_SIZE + j, buf[j]);
+		exit (-1);
+	    }
+	}
+    }
+    close (fd);
+    unlink (name);
+
+    printf ("...passed\n");
+    return 0;
+}
@@ -0,0 +1,123 @@
+/*
+ * ring1.c
+ *
+ * Test ringSetup() and ringSubmit().  Checks that a ring in the program's
+ * code is refused, then submits a write and a close of a new file through
+ * a ring, and a syscall a ring may not carry, and checks the completions
+ * and the file's contents.
+ */
+
+#include "syscall.h"
+#include "stdio.h"
+#include "stdlib.h"
+
+#define ENTRIES		4
+
+// the ring lives in writable data, with room for ENTRIES slots
+int ringMem[RING_SIZE(ENTRIES) / sizeof(int)];
+
+char *message = "written through the ring\n";
+char buf[64];
+
+int
+main (int argc, char *argv[])
+{
+    struct ring *ring = (struct ring *) ringMem;
+    struct ringEntry *sq = RING_SQ(ring);
+    struct ringCompletion *cq = RING_CQ(ring, ENTRIES);
+    char *name = "ring1.dat";
+    int fd, len, i, r;
+
+    // the kernel writes completions, so a ring in code must be refused
+    r = ringSetup ((struct ring *) main, ENTRIES, 0);
+    if (r != -1) {
+	printf ("ringSetup on read-only memory should fail (r = %d)\n", r);
+	exit (-1);
+    }
+    r = ringSetup (ring, 3, 0);
+    if (r != -1) {
+	printf ("ringSetup with 3 entries should fail (r = %d)\n", r);
+	exit (-1);
+    }
+    r = ringSetup (ring, ENTRIES, 0);
+    if (r != 0) {
+	printf ("ringSetup failed (r = %d)\n", r);
+	exit (-1);
+    }
+    r = ringSetup (ring, ENTRIES, 0);
+    if (r != -1) {
+	printf ("a second ringSetup should fail (r = %d)\n", r);
+	exit (-1);
+    }
+
+    fd = creat (name);
+    if (fd < 0) {
+	printf ("failed to create %s\n", name);
+	exit (-1);
+    }
+    len = strlen (message);
+
+    sq[0].syscall = syscallWrite;
+    sq[0].args[0] = fd;
+    sq[0].args[1] = (int) message;
+    sq[0].args[2] = len;
+    sq[0].user_data = 1;
+    sq[1].syscall = syscallClose;
+    sq[1].args[0] = fd;
+    sq[1].user_data = 2;
+    sq[2].syscall = syscallHalt;
+    sq[2].user_data = 3;
+    ring->sq_tail = 3;
+
+    r = ringSubmit (ENTRIES);
+    if (r != 3) {
+	printf ("ringSubmit carried out %d entries, expected 3\n", r);
+	exit (-1);
+    }
+    if (ring->sq_head != 3 || ring->cq_tail != 3) {
+	printf ("counters not advanced: sq_head %d, cq_tail %d\n",
+		ring->sq_head, ring->cq_tail);
+	exit (-1);
+    }
+    if (cq[0].user_data != 1 || cq[0].result != len) {
+	printf ("write completion: user_data %d, result %d\n",
+		cq[0].user_data, cq[0].result);
+	exit (-1);
+    }
+    if (cq[1].user_data != 2 || cq[1].result != 0) {
+	printf ("close completion: user_data %d, result %d\n",
+		cq[1].user_data, cq[1].result);
+	exit (-1);
+    }
+    if (cq[2].user_data != 3 || cq[2].result != -1) {
+	printf ("halt should not be allowed in a ring (result %d)\n",
+		cq[2].result);
+	exit (-1);
+    }
+    ring->cq_head = 3;
+
+    // nothing left to carry out
+    r = ringSubmit (ENTRIES);
+    if (r != 0) {
+	printf ("ringSubmit on an empty ring returned %d\n", r);
+	exit (-1);
+    }
+
+    fd = open (name);
+    r = read (fd, buf, sizeof(buf));
+    if (r != len) {
+	printf ("read %d bytes back, expected %d\n", r, len);
+	exit (-1);
+    }
+    for (i = 0; i < len; i++) {
+	if (buf[i] != message[i]) {
+	    printf ("byte %d of the file is %d\n", i, buf[i]);
+	    exit (-1);
+	}
+    }
+    close (fd);
+    unlink (name);
+
+    printf ("...passed\n");
+    return 0;
+}
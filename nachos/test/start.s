@@ -67,3 +67,16 @@ name:				; \
 	SYSCALLSTUB(mmap, syscallMmap)
 	SYSCALLSTUB(connect, syscallConnect)
 	SYSCALLSTUB(accept, syscallAccept)
+	SYSCALLSTUB(readv, syscallReadv)
+	SYSCALLSTUB(writev, syscallWritev)
+	SYSCALLSTUB(munmap, syscallMunmap)
+	SYSCALLSTUB(dup, syscallDup)
+	SYSCALLSTUB(dup2, syscallDup2)
+	SYSCALLSTUB(aioRead, syscallAioRead)
+	SYSCALLSTUB(aioWrite, syscallAioWrite)
+	SYSCALLSTUB(aioPoll, syscallAioPoll)
+	SYSCALLSTUB(aioWait, syscallAioWait)
+	SYSCALLSTUB(pipe, syscallPipe)
+	SYSCALLSTUB(fork, syscallFork)
+	SYSCALLSTUB(ringSetup, syscallRingSetup)
+	SYSCALLSTUB(ringSubmit, syscallRingSubmit)
@@ -25,6 +25,25 @@
 #define syscallMmap		10
 #define syscallConnect		11
 #define syscallAccept		12
+#define syscallReadv		13
+#define syscallWritev		14
+#define syscallMunmap		15
+#define syscallDup		16
+#define syscallDup2		17
+#define syscallAioRead		18
+#define syscallAioWrite		19
+#define syscallAioPoll		20
+#define syscallAioWait		21
+#define syscallPipe		22
+#define syscallFork		23
+#define syscallRingSetup	24
+#define syscallRingSubmit	25
+
+/* returned by aioPoll() while a request is still in progress */
+#define AIO_PENDING		-2
+
+/* ringSetup() flag: have a kernel thread carry out submitted entries */
+#define RING_POLL		1
 
 /* Don't want the assembler to see C code, but start.s includes syscall.h. */
 #ifndef START_S
@@ -181,6 +200,209 @@ int read(int fileDescriptor, void *buffer, int count);
  */
 int write(int fileDescriptor, void *buffer, int count);
 
+/**
+ * Return the lowest unused file descriptor, made to refer to the same file or
+ * stream as fileDescriptor. Both descriptors share one file position, and the
+ * file is not closed until all descriptors referring to it are.
+ *
+ * Returns the new file descriptor, or -1 if fileDescriptor is invalid or the
+ * process has too many files open.
+ */
+int dup(int fileDescriptor);
+
+/**
+ * Make newFileDescriptor refer to the same file or stream as fileDescriptor,
+ * closing newFileDescriptor first if it was open. Nothing happens if the two
+ * are equal.
+ *
+ * Returns newFileDescriptor, or -1 if an error occurred.
+ */
+int dup2(int fileDescriptor, int newFileDescriptor);
+
+/**
+ * Create a new process that is a copy of this one. Both continue from the
+ * return of fork(): the parent gets the child's process ID and the child gets
+ * 0. The child can be joined like a child started by exec().
+ *
+ * Memory is not copied up front; the two processes share each page until one
+ * of them writes to it. Files mapped with mmap() are not inherited.
+ *
+ * Open files are not inherited either: the child starts with only file
+ * descriptors 0 and 1, on its own console, unless the parent's descriptor 0
+ * or 1 is a pipe, in which case the child gets the same end of that pipe.
+ * Every other file the parent has open is closed in the child.
+ *
+ * Returns the child's process ID to the parent and 0 to the child, or -1 if
+ * an error occurred.
+ */
+int fork();
+
+/**
+ * Create a pipe, a one-way in-memory channel, and store a file descriptor
+ * for reading from it in fileDescriptors[0] and one for writing to it in
+ * fileDescriptors[1]. Both are streams.
+ *
+ * A read blocks until data is available and returns 0 once every write end
+ * is closed. A write blocks until all of its data fits; writes of up to the
+ * pipe's capacity are never interleaved with other writes. A write with no
+ * read end open returns -1.
+ *
+ * A process created by exec() gets its parent's file descriptors 0 and 1 if
+ * they refer to pipes, so a shell can connect programs with dup2() and
+ * exec().
+ *
+ * Returns 0 on success, or -1 if an error occurred.
+ */
+int pipe(int fileDescriptors[2]);
+
+/**
+ * Start reading up to count bytes into buffer from the file or stream referred
+ * to by fileDescriptor, and return without waiting for the data. A kernel
+ * thread carries out the read while the program keeps running.
+ *
+ * For a file on disk the read starts at offset and does not move the file
+ * position, so several requests on one file may be outstanding. An offset of
+ * -1 reads at, and advances, the file position instead, as read() does.
+ *
+ * buffer must not be used until the request has completed. Pipes cannot be
+ * read or written this way. The kernel keeps the buffer's pages in memory
+ * while the request is outstanding, so only a few pages' worth of requests,
+ * a quarter of physical memory by default, may be outstanding at once.
+ *
+ * Returns a request id to pass to aioPoll() or aioWait(), or -1 if an error
+ * occurred, too many requests are outstanding, or buffer covers more pages
+ * than may be kept in memory.
+ */
+int aioRead(int fileDescriptor, void *buffer, int count, int offset);
+
+/**
+ * Start writing count bytes from buffer to the file or stream referred to by
+ * fileDescriptor, like aioRead().
+ */
+int aioWrite(int fileDescriptor, void *buffer, int count, int offset);
+
+/**
+ * Check whether the request id has completed. If it has, return what read()
+ * or write() would have returned, and forget the request; the id may not be
+ * used again.
+ *
+ * Returns AIO_PENDING if the request is still in progress, or -1 if id is not
+ * an unclaimed request.
+ */
+int aioPoll(int id);
+
+/**
+ * Wait until the request id has completed, then return its result as
+ * aioPoll() does.
+ */
+int aioWait(int id);
+
+/**
+ * One buffer of a readv() or writev() call.
+ */
+struct iovec {
+    void *iov_base;	/* start of the buffer */
+    int iov_len;	/* number of bytes in the buffer */
+};
+
+/**
+ * Read into the iovcnt buffers described by iov, filling each buffer before
+ * moving on to the next, as if by a single read() into their concatenation.
+ * The whole iovec array is checked before any data is read, and the file
+ * position is advanced once by the total.
+ *
+ * Returns the number of bytes read, which is smaller than the total length
+ * of the buffers at the end of a file, when a stream has no more data, or
+ * when an error stops the read after some bytes arrived, or -1 on error,
+ * including if any buffer is invalid or iovcnt is negative or larger than
+ * 1024.
+ */
+int readv(int fileDescriptor, struct iovec *iov, int iovcnt);
+
+/**
+ * Write the iovcnt buffers described by iov, in order, as if by a single
+ * write() of their concatenation. One writev() of many small records costs
+ * one system call instead of one per record.
+ *
+ * Returns the total number of bytes written, or -1 on error, including if
+ * fewer bytes than the total length of the buffers could be written.
+ */
+int writev(int fileDescriptor, struct iovec *iov, int iovcnt);
+
+/**
+ * A syscall submitted through a ring: the syscall number and its arguments,
+ * as they would be passed to the syscall itself. user_data is copied to the
+ * entry's completion.
+ */
+struct ringEntry {
+    int syscall;	/* syscallRead, syscallWrite, ... */
+    int args[4];	/* the syscall's arguments */
+    int user_data;	/* returned in the completion */
+};
+
+/**
+ * The completion of a submitted entry.
+ */
+struct ringCompletion {
+    int user_data;	/* the entry's user_data */
+    int result;		/* what the syscall returned */
+};
+
+/**
+ * The header of a syscall ring. It is followed in memory by entries
+ * submission entries and then entries completions; use RING_SIZE() to
+ * allocate a ring and RING_SQ() and RING_CQ() to find the queues.
+ *
+ * The counters only ever grow, and the slot for counter n is n modulo the
+ * number of entries. The program fills the entry at sq_tail and then
+ * advances sq_tail; the kernel takes entries from sq_head. The kernel writes
+ * the completion at cq_tail and then advances cq_tail; the program reads
+ * completions from cq_head and advances cq_head to free their slots.
+ */
+struct ring {
+    int sq_head;	/* next entry the kernel takes */
+    int sq_tail;	/* next entry the program fills */
+    int cq_head;	/* next completion the program reads */
+    int cq_tail;	/* next completion the kernel writes */
+};
+
+#define RING_SQ(ring)		((struct ringEntry *) ((ring) + 1))
+#define RING_CQ(ring, entries)	((struct ringCompletion *) \
+				 (RING_SQ(ring) + (entries)))
+#define RING_SIZE(entries)	(sizeof(struct ring) + (entries) * \
+				 (sizeof(struct ringEntry) + \
+				  sizeof(struct ringCompletion)))
+
+/**
+ * Submit syscalls through the ring at ring from now on. entries is the
+ * number of slots in each queue and must be a power of two no larger than
+ * 256. The ring's counters should be zero, and the whole ring must be in
+ * writable memory, not in the program's code or read-only data.
+ *
+ * If flags is RING_POLL, a kernel thread carries out submitted entries
+ * every few hundred ticks, so the program need not call ringSubmit() at
+ * all; it only has to watch cq_tail. Otherwise flags must be 0.
+ *
+ * Only creat, open, read, write, close, unlink, readv, writev, dup and dup2
+ * may be submitted; other entries complete with -1. A process has at most
+ * one ring, which is not inherited by fork() or exec().
+ *
+ * Returns 0 on success, or -1 if an error occurred.
+ */
+int ringSetup(struct ring *ring, int entries, int flags);
+
+/**
+ * Carry out up to count entries submitted to the ring, in order, stopping
+ * early if the completion queue fills up. This costs one system call however
+ * many entries there are.
+ *
+ * Returns the number of entries carried out, or -1 if the process has no
+ * ring, its counters are inconsistent, or it could not be written. Entries
+ * carried out before a failed write are still counted in sq_head, so they
+ * are not carried out again.
+ */
+int ringSubmit(int count);
+
 /**
  * Close a file descriptor, so that it no longer refers to any file or
  * stream and may be reused. The resources associated with the file
@@ -205,7 +427,9 @@ int unlink(char *name);
 
 /**
  * Map the file referenced by fileDescriptor into memory at address. The file
- * may be as large as 0x7FFFFFFF bytes.
+ * may be as large as 0x7FFFFFFF bytes. address must be page-aligned, above the
+ * program and its stack, and the map must not overlap another one. Pages are
+ * read from the file only when first touched.
  * 
  * To maintain consistency, further calls to read() and write() on this file
  * descriptor will fail (returning -1) until the file descriptor is closed.
@@ -217,6 +441,15 @@ int unlink(char *name);
  */
 int mmap(int fileDescriptor, char *address);
 
+/**
+ * Remove the map that starts at address, which must be an address passed to
+ * an earlier mmap(). All dirty pages of the map are flushed to disk first.
+ * The file descriptor stays open and can be read and written again.
+ *
+ * Returns 0 on success, or -1 if no map starts at address.
+ */
+int munmap(char *address);
+
 /**
  * Attempt to initiate a new connection to the specified port on the specified
  * remote host, and return a new file descriptor referring to the connection.
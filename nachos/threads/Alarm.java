@@ -6,10 +6,37 @@ import java.util.*;
 /**
  * Uses the hardware timer to provide preemption, and to allow threads to sleep
  * until a certain time.
+ *
+ * <p>
+ * If <tt>Alarm.dynamicTicks</tt> is set, timer interrupts that have nothing
+ * to do are suppressed: while no other thread is ready and no sleeper is due,
+ * the handler returns at once without scanning the sleepers or yielding, so a
+ * lone CPU-bound thread takes no useless yields. The hardware timer itself
+ * keeps its fixed period, so the autograder's timer callbacks are unaffected.
+ *
+ * <p>
+ * If <tt>Alarm.adaptiveQuantum</tt> is set, each thread's time slice is sized
+ * from its own recent run bursts: twice the average burst, clamped to
+ * <tt>Alarm.minQuantum</tt> and <tt>Alarm.maxQuantum</tt>. Threads that use
+ * up their slices keep getting longer ones, threads that block early get
+ * short ones. The timer interrupt only preempts a thread once its slice has
+ * ended, so this works with any scheduler.
  */
 public class Alarm {
 	private LinkedList<TimeCompare> timeQueue = new LinkedList<>();
 
+	private boolean dynamicTicks;
+
+	private boolean adaptiveQuantum;
+
+	private long minQuantum, maxQuantum;
+
+	/** Earliest wake time in timeQueue, or Long.MAX_VALUE. May be early. */
+	private long nextWake = Long.MAX_VALUE;
+
+	/** Number of timer interrupts handled, not counting suppressed ones. */
+	private int interrupts = 0;
+
 	/**
 	 * Allocate a new Alarm. Set the machine's timer interrupt handler to this
 	 * alarm's callback.
@@ -23,6 +50,13 @@ public class Alarm {
 				timerInterrupt();
 			}
 		});
+
+		adaptiveQuantum = Config.getBoolean("Alarm.adaptiveQuantum", false);
+		minQuantum = Config.getInteger("Alarm.minQuantum", Stats.TimerTicks / 5);
+		maxQuantum = Config.getInteger("Alarm.maxQuantum", Stats.TimerTicks * 4);
+		Lib.assertTrue(minQuantum > 0 && minQuantum <= maxQuantum);
+
+		dynamicTicks = Config.getBoolean("Alarm.dynamicTicks", false);
 	}
 
 	// Private helper class
@@ -48,25 +82,53 @@ public class Alarm {
 
 	/**
 	 * The timer interrupt handler. This is called by the machine's timer
-	 * periodically (approximately every 500 clock ticks). Causes the current
-	 * thread to yield, forcing a context switch if there is another thread that
-	 * should be run.
+	 * periodically (approximately every 500 clock ticks). Wakes up every
+	 * sleeper that is due, then causes the current thread to yield if there is
+	 * another thread that should be run.
 	 */
 	public void timerInterrupt() {
-		KThread.currentThread().yield();
 		long currTime = Machine.timer().getTime();
+		// a suppressed tick: nobody to wake and nothing to switch to
+		if (dynamicTicks && KThread.readyCount() == 0 && currTime < nextWake)
+			return;
 		boolean oriStatus = Machine.interrupt().disable(); // Turn off interrupter
+		interrupts++;
 		TimeCompare timeCompare;
+		nextWake = Long.MAX_VALUE;
 		for(java.util.Iterator i = timeQueue.iterator();i.hasNext();){
 			timeCompare = (TimeCompare) i.next(); // Get each comparable thread from list to check
 			if(timeCompare.time<=currTime){ // If reach wakeup time, remove and ready
 				i.remove();
 				timeCompare.thread.ready();
 			}
+			else {
+				nextWake = Math.min(nextWake, timeCompare.time);
+			}
 		}
+		if (KThread.readyCount() > 0 && sliceOver(currTime)) // nothing to switch to otherwise
+			KThread.currentThread().yield();
 		Machine.interrupt().restore(oriStatus); // Restore interrupter
 	}
 
+	/**
+	 * Return the length of the next time slice for <i>thread</i>.
+	 */
+	long quantumFor(KThread thread) {
+		if (!adaptiveQuantum)
+			return Stats.TimerTicks;
+
+		long quantum = 2 * thread.averageBurst();
+		return Math.max(minQuantum, Math.min(maxQuantum, quantum));
+	}
+
+	/**
+	 * Return true if the current thread may be preempted at time <i>now</i>.
+	 * Without adaptive quanta every timer interrupt ends the slice.
+	 */
+	private boolean sliceOver(long now) {
+		return !adaptiveQuantum || now >= KThread.currentThread().preemptDeadline();
+	}
+
 	/**
 	 * Put the current thread to sleep for at least <i>x</i> ticks, waking it up
 	 * in the timer interrupt handler. The thread must be woken up (placed in
@@ -87,6 +149,7 @@ public class Alarm {
 		boolean oriStatus = Machine.interrupt().disable(); // Turn off interrupter
 		TimeCompare timeCompare = new TimeCompare(KThread.currentThread(), wakeTime);
 		timeQueue.add(timeCompare); // Add thread to the list
+		nextWake = Math.min(nextWake, wakeTime);
 		KThread.sleep(); // Sleep the thread
 		Machine.interrupt().restore(oriStatus); // Restore interrupter
 	}
@@ -101,11 +164,29 @@ public class Alarm {
 	 * @param thread the thread whose timer should be cancelled.
 	 */
 	public boolean cancel(KThread thread) {
+		if (!remove(thread))
+			return false;
+
+		thread.ready();
+		return true;
+	}
+
+	/**
+	 * Remove any timer set by <i>thread</i> without waking it up. Used when
+	 * the thread is about to be handed to some other wait queue instead (for
+	 * example when <tt>Condition2</tt> morphs a timed waiter onto its lock).
+	 * Must be called with interrupts disabled.
+	 *
+	 * @param thread the thread whose timer should be removed.
+	 * @return <tt>true</tt> if <i>thread</i> had a timer set.
+	 */
+	boolean remove(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
 		for(java.util.Iterator i = timeQueue.iterator();i.hasNext();){
 			TimeCompare timeCompare = (TimeCompare) i.next(); // Get each comparable thread from list to check
-			if(timeCompare.thread==thread){ // If the thread has timer set remove and ready
+			if(timeCompare.thread==thread){ // If the thread has timer set remove it
 				i.remove();
-				timeCompare.thread.ready();
 				return true;
 			}
 		}
@@ -125,10 +206,73 @@ public class Alarm {
 		}
 	}
 
+	/**
+	 * Run a single CPU-bound thread for <i>ticks</i> ticks and report how many
+	 * timer interrupts it took. With <tt>Alarm.dynamicTicks</tt> set they
+	 * should all be suppressed.
+	 */
+	public static void tickTest(long ticks) {
+		int before = ThreadedKernel.alarm.interrupts;
+		long t0 = Machine.timer().getTime();
+		while (Machine.timer().getTime() - t0 < ticks) {
+			// each disable/restore pair advances the clock
+			boolean intStatus = Machine.interrupt().disable();
+			Machine.interrupt().restore(intStatus);
+		}
+		System.out.println ("tickTest: " + (ThreadedKernel.alarm.interrupts - before)
+				+ " timer interrupts handled in " + ticks + " ticks, dynamic ticks "
+				+ ThreadedKernel.alarm.dynamicTicks);
+	}
+
+	/**
+	 * Run a CPU-bound thread next to an interactive one that keeps sleeping
+	 * briefly, and report the slices each ends up with. With
+	 * <tt>Alarm.adaptiveQuantum</tt> set the CPU-bound thread should get
+	 * long slices and the interactive one short ones.
+	 */
+	public static void quantumTest() {
+		final long duration = 50*1000;
+		final KThread[] threads = new KThread[2];
+
+		threads[0] = new KThread(new Runnable() {
+			public void run() {
+				long t0 = Machine.timer().getTime();
+				while (Machine.timer().getTime() - t0 < duration) {
+					boolean intStatus = Machine.interrupt().disable();
+					Machine.interrupt().restore(intStatus);
+				}
+			}
+		}).setName("cpu bound");
+		threads[1] = new KThread(new Runnable() {
+			public void run() {
+				long t0 = Machine.timer().getTime();
+				while (Machine.timer().getTime() - t0 < duration)
+					ThreadedKernel.alarm.waitUntil(100);
+			}
+		}).setName("interactive");
+
+		threads[0].fork();
+		threads[1].fork();
+		threads[0].join();
+		boolean intStatus = Machine.interrupt().disable();
+		for (KThread t : threads)
+			System.out.println ("quantumTest: " + t.getName() + " average burst "
+					+ t.averageBurst() + " ticks, quantum "
+					+ ThreadedKernel.alarm.quantumFor(t) + " ticks");
+		Machine.interrupt().restore(intStatus);
+		threads[1].join();
+	}
+
 	// Implement more test methods here ...
 	// Invoke Alarm.selfTest() from ThreadedKernel.selfTest()
 	public static void selfTest() {
 		alarmTest1();
+		// these run for a while and only report numbers, so they are off
+		// unless asked for
+		if (Config.getBoolean("Alarm.benchmarks", false)) {
+			tickTest(100*1000);
+			quantumTest();
+		}
 		// Invoke your other test methods here ...
 	}
 }
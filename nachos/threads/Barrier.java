@@ -0,0 +1,112 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A <i>barrier</i> makes a fixed number of threads wait for each other. Each
+ * thread calls <tt>await()</tt>; the first <tt>parties - 1</tt> callers sleep,
+ * and the last one to arrive releases all of them at once and the barrier is
+ * reset for the next round.
+ *
+ * <p>
+ * Waiters sleep on a <tt>ThreadQueue</tt> from the scheduler, and the whole
+ * queue is drained in the same interrupts-disabled section as the last
+ * arrival, so a round costs one batch of <tt>ready()</tt> calls rather than a
+ * chain of wake-ups.
+ */
+public class Barrier {
+	/**
+	 * Allocate a new barrier.
+	 *
+	 * @param parties the number of threads that must call <tt>await()</tt>
+	 * before any of them return.
+	 */
+	public Barrier(int parties) {
+		Lib.assertTrue(parties > 0);
+
+		this.parties = parties;
+	}
+
+	/**
+	 * Wait until <tt>parties</tt> threads have called <tt>await()</tt> in the
+	 * current round.
+	 *
+	 * @return the arrival index of this thread, from <tt>parties - 1</tt> for
+	 * the first thread to arrive down to 0 for the last.
+	 */
+	public int await() {
+		boolean intStatus = Machine.interrupt().disable();
+
+		int index = parties - 1 - arrived;
+		arrived++;
+
+		if (arrived == parties) {
+			arrived = 0;
+			readyAll(waitQueue);
+		}
+		else {
+			waitQueue.waitForAccess(KThread.currentThread());
+			KThread.sleep();
+		}
+
+		Machine.interrupt().restore(intStatus);
+		return index;
+	}
+
+	/**
+	 * Return the number of threads needed to trip this barrier.
+	 *
+	 * @return the number of parties.
+	 */
+	public int getParties() {
+		return parties;
+	}
+
+	/**
+	 * Move every thread waiting on <i>queue</i> to the ready queue. Interrupts
+	 * must be disabled.
+	 */
+	static void readyAll(ThreadQueue queue) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		KThread thread;
+		while ((thread = queue.nextThread()) != null)
+			thread.ready();
+	}
+
+	/**
+	 * Test that this module is working.
+	 */
+	public static void selfTest() {
+		final int numThreads = 8, numRounds = 5;
+		final Barrier barrier = new Barrier(numThreads);
+		final int[] progress = new int[numThreads];
+
+		KThread[] threads = new KThread[numThreads];
+		for (int i = 0; i < numThreads; i++) {
+			final int id = i;
+			threads[i] = new KThread(new Runnable() {
+				public void run() {
+					for (int round = 0; round < numRounds; round++) {
+						progress[id] = round + 1;
+						barrier.await();
+						// nobody gets past a round until everyone reached it
+						for (int j = 0; j < numThreads; j++)
+							Lib.assertTrue(progress[j] >= round + 1);
+						KThread.yield();
+					}
+				}
+			}).setName("barrier" + i);
+			threads[i].fork();
+		}
+		for (int i = 0; i < numThreads; i++)
+			threads[i].join();
+	}
+
+	private int parties;
+
+	private int arrived = 0;
+
+	private ThreadQueue waitQueue = ThreadedKernel.scheduler
+			.newThreadQueue(false);
+}
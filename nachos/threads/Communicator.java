@@ -2,40 +2,332 @@ package nachos.threads;
 
 import nachos.machine.*;
 
+import java.util.LinkedList;
+
 /**
  * A <i>communicator</i> allows threads to synchronously exchange 32-bit
  * messages. Multiple threads can be waiting to <i>speak</i>, and multiple
  * threads can be waiting to <i>listen</i>. But there should never be a time
  * when both a speaker and a listener are waiting, because the two threads can
  * be paired off at this point.
+ *
+ * <p>
+ * Words are handed over directly: a speaker that finds a listener waiting
+ * copies its words straight into the listener's array and makes it ready, and
+ * a listener that finds a speaker waiting takes the words straight out of the
+ * speaker's array. A communicator may also be given a <i>capacity</i>, in
+ * which case up to that many words are buffered and speakers only block once
+ * the buffer is full.
+ *
+ * <p>
+ * <tt>speakAll()</tt> and <tt>listen(int[])</tt> move a whole batch of words
+ * per call, so a burst of words costs one wake-up instead of one per word.
+ *
+ * <p>
+ * Like <tt>Condition2</tt>, this class disables interrupts for
+ * synchronization.
  */
 public class Communicator {
 	/**
-	 * Allocate a new communicator.
+	 * Allocate a new communicator. Every word is handed directly from a
+	 * speaker to a listener.
 	 */
 	public Communicator() {
+		this(0);
+	}
+
+	/**
+	 * Allocate a new buffered communicator.
+	 *
+	 * @param capacity the number of words that may be spoken before a listener
+	 * arrives, or 0 for a fully synchronous communicator.
+	 */
+	public Communicator(int capacity) {
+		Lib.assertTrue(capacity >= 0);
+
+		buffer = new int[capacity];
+		speakers = new LinkedList<Speaker>();
+		listeners = new LinkedList<Listener>();
 	}
 
 	/**
 	 * Wait for a thread to listen through this communicator, and then transfer
 	 * <i>word</i> to the listener.
-	 * 
+	 *
 	 * <p>
 	 * Does not return until this thread is paired up with a listening thread.
-	 * Exactly one listener should receive <i>word</i>.
-	 * 
+	 * Exactly one listener should receive <i>word</i>. If this communicator is
+	 * buffered, returns as soon as <i>word</i> has been buffered.
+	 *
 	 * @param word the integer to transfer.
 	 */
 	public void speak(int word) {
+		speakAll(new int[] { word }, 0, 1);
+	}
+
+	/**
+	 * Transfer every word of <i>words</i>, in order. Same as
+	 * <tt>speakAll(words, 0, words.length)</tt>.
+	 *
+	 * @param words the integers to transfer.
+	 */
+	public void speakAll(int[] words) {
+		speakAll(words, 0, words.length);
+	}
+
+	/**
+	 * Transfer <i>length</i> words starting at <i>words[offset]</i>, in order.
+	 * Words are first handed to waiting listeners, then buffered, and whatever
+	 * is left is taken out of <i>words</i> by later listeners while this thread
+	 * sleeps. Does not return until every word has been received or buffered.
+	 *
+	 * @param words the array holding the integers to transfer.
+	 * @param offset the first word to transfer.
+	 * @param length the number of words to transfer.
+	 */
+	public void speakAll(int[] words, int offset, int length) {
+		Lib.assertTrue(offset >= 0 && length >= 0
+				&& offset + length <= words.length);
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		int end = offset + length;
+
+		// waiting listeners have nothing yet, fill them directly
+		while (offset < end && !listeners.isEmpty()) {
+			Listener listener = listeners.removeFirst();
+			int amount = Math.min(end - offset, listener.out.length);
+			System.arraycopy(words, offset, listener.out, 0, amount);
+			listener.count = amount;
+			offset += amount;
+			listener.thread.ready();
+		}
+
+		// then whatever the buffer has room for
+		while (offset < end && size < buffer.length) {
+			buffer[(head + size) % buffer.length] = words[offset++];
+			size++;
+		}
+
+		// the rest is collected by listeners straight out of our array
+		if (offset < end) {
+			Speaker speaker = new Speaker(KThread.currentThread(), words,
+					offset, end);
+			speakers.add(speaker);
+			KThread.sleep();
+			Lib.assertTrue(speaker.next == speaker.end);
+		}
+
+		Machine.interrupt().restore(intStatus);
 	}
 
 	/**
 	 * Wait for a thread to speak through this communicator, and then return the
 	 * <i>word</i> that thread passed to <tt>speak()</tt>.
-	 * 
+	 *
 	 * @return the integer transferred.
 	 */
 	public int listen() {
-		return 0;
+		int[] out = new int[1];
+		listen(out);
+		return out[0];
+	}
+
+	/**
+	 * Wait until at least one word is available, then receive as many words as
+	 * are available, up to <tt>out.length</tt>, in the order they were spoken.
+	 * Blocks only if no word at all is available.
+	 *
+	 * @param out the array where the received words are stored.
+	 * @return the number of words received, at least 1 unless
+	 * <tt>out.length</tt> is 0.
+	 */
+	public int listen(int[] out) {
+		if (out.length == 0)
+			return 0;
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		int count = 0;
+
+		// buffered words were spoken first
+		while (count < out.length && size > 0) {
+			out[count++] = buffer[head];
+			head = (head + 1) % buffer.length;
+			size--;
+		}
+
+		// then words still held by blocked speakers
+		while (count < out.length && !speakers.isEmpty()) {
+			Speaker speaker = speakers.getFirst();
+			int amount = Math.min(out.length - count, speaker.end - speaker.next);
+			System.arraycopy(speaker.words, speaker.next, out, count, amount);
+			speaker.next += amount;
+			count += amount;
+			if (speaker.next == speaker.end) {
+				speakers.removeFirst();
+				speaker.thread.ready();
+			}
+		}
+
+		// refill the buffer from blocked speakers, releasing whoever is done
+		while (size < buffer.length && !speakers.isEmpty()) {
+			Speaker speaker = speakers.getFirst();
+			while (size < buffer.length && speaker.next < speaker.end) {
+				buffer[(head + size) % buffer.length] = speaker.words[speaker.next++];
+				size++;
+			}
+			if (speaker.next == speaker.end) {
+				speakers.removeFirst();
+				speaker.thread.ready();
+			}
+		}
+
+		if (count == 0) {
+			Listener listener = new Listener(KThread.currentThread(), out);
+			listeners.add(listener);
+			KThread.sleep();
+			count = listener.count;
+			Lib.assertTrue(count > 0);
+		}
+
+		Machine.interrupt().restore(intStatus);
+		return count;
+	}
+
+	/**
+	 * A speaker blocked with words that have not been received yet. Listeners
+	 * take <tt>words[next..end)</tt> directly.
+	 */
+	private static class Speaker {
+		Speaker(KThread thread, int[] words, int next, int end) {
+			this.thread = thread;
+			this.words = words;
+			this.next = next;
+			this.end = end;
+		}
+
+		KThread thread;
+
+		int[] words;
+
+		int next, end;
+	}
+
+	/**
+	 * A listener blocked because no word was available. The speaker that
+	 * wakes it fills <tt>out</tt> and sets <tt>count</tt>.
+	 */
+	private static class Listener {
+		Listener(KThread thread, int[] out) {
+			this.thread = thread;
+			this.out = out;
+		}
+
+		KThread thread;
+
+		int[] out;
+
+		int count = 0;
+	}
+
+	private static class PingTest implements Runnable {
+		PingTest(Communicator ping, Communicator pong) {
+			this.ping = ping;
+			this.pong = pong;
+		}
+
+		public void run() {
+			for (int i = 0; i < 10; i++)
+				pong.speak(ping.listen());
+		}
+
+		private Communicator ping;
+
+		private Communicator pong;
+	}
+
+	/**
+	 * Move <i>numWords</i> words from a producer to a consumer in bursts of
+	 * <i>burst</i> words, and return the number of ticks it took.
+	 */
+	private static long burstTest(final Communicator c, final int numWords,
+			final int burst, final boolean batched) {
+		KThread producer = new KThread(new Runnable() {
+			public void run() {
+				int[] words = new int[burst];
+				for (int sent = 0; sent < numWords; sent += burst) {
+					for (int i = 0; i < burst; i++)
+						words[i] = sent + i;
+					if (batched) {
+						c.speakAll(words);
+					}
+					else {
+						for (int i = 0; i < burst; i++)
+							c.speak(words[i]);
+					}
+				}
+			}
+		}).setName("producer");
+
+		long t0 = Machine.timer().getTime();
+		producer.fork();
+
+		int[] out = new int[burst];
+		int received = 0;
+		while (received < numWords) {
+			if (batched) {
+				int n = c.listen(out);
+				for (int i = 0; i < n; i++)
+					Lib.assertTrue(out[i] == received + i, "Words out of order.");
+				received += n;
+			}
+			else {
+				Lib.assertTrue(c.listen() == received, "Words out of order.");
+				received++;
+			}
+		}
+		producer.join();
+
+		return Machine.timer().getTime() - t0;
 	}
+
+	/**
+	 * Test that this module is working.
+	 */
+	public static void selfTest() {
+		Communicator ping = new Communicator();
+		Communicator pong = new Communicator();
+
+		new KThread(new PingTest(ping, pong)).setName("ping").fork();
+
+		for (int i = 0; i < 10; i++) {
+			ping.speak(i);
+			Lib.assertTrue(pong.listen() == i);
+		}
+
+		int numWords = 1024, burst = 64;
+		System.out.println("Communicator: " + numWords + " words in bursts of "
+				+ burst);
+		System.out.println("  speak/listen, unbuffered: "
+				+ burstTest(new Communicator(), numWords, burst, false)
+				+ " ticks");
+		System.out.println("  speak/listen, capacity " + burst + ": "
+				+ burstTest(new Communicator(burst), numWords, burst, false)
+				+ " ticks");
+		System.out.println("  speakAll/listen(int[]), unbuffered: "
+				+ burstTest(new Communicator(), numWords, burst, true)
+				+ " ticks");
+		System.out.println("  speakAll/listen(int[]), capacity " + burst + ": "
+				+ burstTest(new Communicator(burst), numWords, burst, true)
+				+ " ticks");
+	}
+
+	private int[] buffer;
+
+	private int head = 0, size = 0;
+
+	private LinkedList<Speaker> speakers;
+
+	private LinkedList<Listener> listeners;
 }
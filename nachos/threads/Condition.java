@@ -5,7 +5,8 @@ import nachos.machine.*;
 import java.util.LinkedList;
 
 /**
- * An implementation of condition variables built upon semaphores.
+ * An implementation of condition variables that hands woken threads directly
+ * to the associated lock.
  * 
  * <p>
  * A condition variable is a synchronization primitive that does not have a
@@ -49,6 +50,14 @@ import java.util.LinkedList;
  * acquire the lock and change data structures, before the woken thread gets a
  * chance to run. The advance to Mesa-style semantics is that it is a lot easier
  * to implement.
+ * 
+ * <p>
+ * Because the waker must hold the lock, a woken thread could not make progress
+ * before the lock is released anyway. Rather than putting it on the ready list
+ * only to have it block again in <tt>Lock.acquire()</tt>, <tt>wake()</tt> and
+ * <tt>wakeAll()</tt> move it straight onto the lock's wait queue (<i>wait
+ * morphing</i>). A broadcast to <i>n</i> threads therefore costs <i>n</i>
+ * context switches instead of <i>2n</i>.
  */
 public class Condition {
 	/**
@@ -61,7 +70,7 @@ public class Condition {
 	public Condition(Lock conditionLock) {
 		this.conditionLock = conditionLock;
 
-		waitQueue = new LinkedList<Semaphore>();
+		waitQueue = new LinkedList<KThread>();
 	}
 
 	/**
@@ -71,20 +80,24 @@ public class Condition {
 	 * reacquire the lock before <tt>sleep()</tt> returns.
 	 * 
 	 * <p>
-	 * This implementation uses semaphores to implement this, by allocating a
-	 * semaphore for each waiting thread. The waker will <tt>V()</tt> this
-	 * semaphore, so thre is no chance the sleeper will miss the wake-up, even
-	 * though the lock is released before caling <tt>P()</tt>.
+	 * Interrupts are disabled while the thread queues itself and releases the
+	 * lock, so there is no chance the sleeper will miss the wake-up. The waker
+	 * queues the sleeper on the lock, so by the time this thread runs again it
+	 * already holds the lock.
 	 */
 	public void sleep() {
 		Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 
-		Semaphore waiter = new Semaphore(0);
-		waitQueue.add(waiter);
+		boolean intStatus = Machine.interrupt().disable();
+
+		waitQueue.add(KThread.currentThread());
 
 		conditionLock.release();
-		waiter.P();
-		conditionLock.acquire();
+		KThread.sleep();
+
+		Lib.assertTrue(conditionLock.isHeldByCurrentThread());
+
+		Machine.interrupt().restore(intStatus);
 	}
 
 	/**
@@ -94,8 +107,12 @@ public class Condition {
 	public void wake() {
 		Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 
+		boolean intStatus = Machine.interrupt().disable();
+
 		if (!waitQueue.isEmpty())
-			((Semaphore) waitQueue.removeFirst()).V();
+			conditionLock.morphWaiter(waitQueue.removeFirst());
+
+		Machine.interrupt().restore(intStatus);
 	}
 
 	/**
@@ -105,11 +122,15 @@ public class Condition {
 	public void wakeAll() {
 		Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 
+		boolean intStatus = Machine.interrupt().disable();
+
 		while (!waitQueue.isEmpty())
-			wake();
+			conditionLock.morphWaiter(waitQueue.removeFirst());
+
+		Machine.interrupt().restore(intStatus);
 	}
 
 	private Lock conditionLock;
 
-	private LinkedList<Semaphore> waitQueue;
+	private LinkedList<KThread> waitQueue;
 }
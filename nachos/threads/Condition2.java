@@ -11,7 +11,9 @@ import java.util.concurrent.CancellationException;
  * synchronization.
  *
  * <p>
- * You must implement this.
+ * Like <tt>Condition</tt>, woken threads are moved straight from the
+ * condition queue onto the lock's wait queue (<i>wait morphing</i>), so that
+ * they only run once the lock is handed to them.
  *
  * @see nachos.threads.Condition
  */
@@ -44,18 +46,16 @@ public class Condition2 {
 	 * disable interrupt
 	 * make thread wait on CV
 	 * put thread to sleep
+	 * the waker morphs us onto the lock, so we already hold it when we run
 	 * enable interrupt
-	 * ! where to release and acquire
 	 */
 
 	public void sleep() {
 		Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 
 		// first we need to disable interrupt
-		// Machine.interrupt().disable();
 		boolean intStatus = Machine.interrupt().disable();
 
-
 		// release lock after disable interrupt in case unexpect things happen
 		conditionLock.release();
 
@@ -63,13 +63,12 @@ public class Condition2 {
 		KThread cur_thread = KThread.currentThread();
 		conditionQueue.add(cur_thread);
 
-		// put thread to sleep
+		// put thread to sleep, wake() hands us the lock before we run again
 		cur_thread.sleep();
 
-		conditionLock.acquire();
+		Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 
 		// finally enable interrupt
-		// Machine.interrupt().enable();
 		Machine.interrupt().restore(intStatus);
 	}
 
@@ -82,25 +81,16 @@ public class Condition2 {
 		Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 
 		// disable interrupt first
-		// Machine.interrupt().disable();
 		boolean intStatus = Machine.interrupt().disable();
 
-
-		// Check queue
-		if (!conditionQueue.isEmpty()) {
-			// get the first thread( at most one )
-			KThread wake_thread = conditionQueue.pollFirst();
-			// System.out.println("Now thread: " + wake_thread.status);
-			// update status
-			ThreadedKernel.alarm.cancel(wake_thread); // break timer for part 4
-			if(wake_thread.getStatus() != statusReady) {
-				wake_thread.ready();
+		// get the first thread that is still waiting( at most one )
+		while (!conditionQueue.isEmpty()) {
+			if (morph(conditionQueue.removeFirst())) {
+				break;
 			}
-
 		}
 
 		// enable interrupt
-		// Machine.interrupt().enable();
 		Machine.interrupt().restore(intStatus);
 	}
 
@@ -112,29 +102,34 @@ public class Condition2 {
 		Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 
 		// disable interrupt first
-		// Machine.interrupt().disabled();
 		boolean intStatus = Machine.interrupt().disable();
-		// disable & enable in wake() already
-		// disable interrupt first
-		// Machine.interrupt().disabled();
-		// for each thread in queue
-/*		for( KThread each_thread:conditionQueue){
-			conditionQueue.remove(each_thread); // remove from waiting
-			//each_thread.ready(); // update status
-			ThreadedKernel.alarm.cancel(each_thread);// for part 4
-			if(each_thread.getStatus() != statusReady) {
-				each_thread.ready();
-			}
-		}
-*/
 
-		while( !conditionQueue.isEmpty() ){
-			wake();
+		// move every waiter to the lock in one pass, nobody becomes ready here
+		while (!conditionQueue.isEmpty()) {
+			morph(conditionQueue.removeFirst());
 		}
-// enable interrupt
+
+		// enable interrupt
 		Machine.interrupt().restore(intStatus);
 	}
 
+	/**
+	 * Move a thread taken off the condition queue onto the lock's wait queue.
+	 * A thread that already timed out in <tt>sleepFor()</tt> is ready and will
+	 * reacquire the lock by itself, so it is skipped.
+	 *
+	 * @return <tt>true</tt> if the thread was morphed onto the lock.
+	 */
+	private boolean morph(KThread thread) {
+		if (thread.getStatus() == statusReady) {
+			return false;
+		}
+		// break timer for part 4, without making the thread ready
+		ThreadedKernel.alarm.remove(thread);
+		conditionLock.morphWaiter(thread);
+		return true;
+	}
+
 	/**
 	 * Atomically release the associated lock and go to sleep on
 	 * this condition variable until either (1) another thread
@@ -159,14 +154,13 @@ public class Condition2 {
 
 		ThreadedKernel.alarm.waitUntil(timeout);
 
-		//ThreadedKernel.alarm.cancel(sleep_thread);
-
-		if(conditionQueue.contains(sleep_thread)){
+		// woken by wake(): it already handed us the lock
+		// timed out: still queued on the CV, take ourselves off and reacquire
+		if (!conditionLock.isHeldByCurrentThread()) {
 			conditionQueue.remove(sleep_thread);
+			conditionLock.acquire();
 		}
 
-		conditionLock.acquire();
-
 		Machine.interrupt().restore(intStatus);
 
 	}
@@ -452,6 +446,76 @@ public class Condition2 {
 	}
 
 
+	// Broadcast test: every waiter is morphed onto the lock by wakeAll(), so
+	// each one runs exactly once, already holding the lock, in the order it
+	// went to sleep.
+
+	private static class WakeAllTest {
+		private static final int numWaiters = 8;
+		private static Lock lock;
+		private static Condition2 cv;
+		private static boolean go;
+		private static int asleep;
+		private static int[] order;
+		private static int woken;
+
+		private static class Waiter implements Runnable {
+			Waiter(int which) {
+				this.which = which;
+			}
+
+			public void run() {
+				lock.acquire();
+				asleep++;
+				while (!go) {
+					cv.sleep();
+				}
+				Lib.assertTrue(lock.isHeldByCurrentThread());
+				order[woken++] = which;
+				lock.release();
+			}
+
+			private int which;
+		}
+
+		public WakeAllTest() {
+			System.out.println("Start wakeAll test");
+			lock = new Lock();
+			cv = new Condition2(lock);
+			go = false;
+			asleep = 0;
+			woken = 0;
+			order = new int[numWaiters];
+
+			KThread[] waiters = new KThread[numWaiters];
+			for (int i = 0; i < numWaiters; i++) {
+				waiters[i] = new KThread(new Waiter(i)).setName("waiter" + i);
+				waiters[i].fork();
+			}
+			// test programs can busy wait
+			while (asleep < numWaiters) {
+				KThread.yield();
+			}
+
+			long t0 = Machine.timer().getTime();
+			lock.acquire();
+			go = true;
+			cv.wakeAll();
+			lock.release();
+			for (int i = 0; i < numWaiters; i++) {
+				waiters[i].join();
+			}
+			long t1 = Machine.timer().getTime();
+
+			Lib.assertTrue(woken == numWaiters, "Expected all waiters to wake.");
+			for (int i = 0; i < numWaiters; i++) {
+				Lib.assertTrue(order[i] == i, "Waiters woke out of order.");
+			}
+			System.out.println("wakeAll of " + numWaiters + " waiters done in "
+					+ (t1 - t0) + " ticks");
+		}
+	}
+
 	// Invoke Condition2.selfTest() from ThreadedKernel.selfTest()
 
 	public static void selfTest() {
@@ -460,5 +524,6 @@ public class Condition2 {
 		// cvTest5();
 		// sleepForTest1();
 		new sleepForTest2();
+		new WakeAllTest();
 	}
 }
@@ -0,0 +1,111 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A <i>count-down latch</i> lets threads wait until a number of events have
+ * happened. The latch starts at a count; <tt>countDown()</tt> decrements it and
+ * <tt>await()</tt> blocks until it reaches zero. Once at zero the latch stays
+ * open, and every later <tt>await()</tt> returns immediately.
+ *
+ * <p>
+ * Unlike <tt>KThread.join()</tt>, any number of threads may wait on one latch,
+ * and one latch can stand for any number of workers. The call that brings the
+ * count to zero releases all waiters at once, with interrupts disabled.
+ */
+public class CountDownLatch {
+	/**
+	 * Allocate a new latch.
+	 *
+	 * @param count the number of <tt>countDown()</tt> calls needed to open the
+	 * latch.
+	 */
+	public CountDownLatch(int count) {
+		Lib.assertTrue(count >= 0);
+
+		this.count = count;
+	}
+
+	/**
+	 * Decrement the count, releasing all waiting threads if it reaches zero.
+	 * Does nothing if the latch is already open.
+	 */
+	public void countDown() {
+		boolean intStatus = Machine.interrupt().disable();
+
+		if (count > 0) {
+			count--;
+			if (count == 0)
+				Barrier.readyAll(waitQueue);
+		}
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Wait until the count reaches zero.
+	 */
+	public void await() {
+		boolean intStatus = Machine.interrupt().disable();
+
+		if (count > 0) {
+			waitQueue.waitForAccess(KThread.currentThread());
+			KThread.sleep();
+		}
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Return the current count. As with a semaphore's value, the answer may be
+	 * stale by the time the caller looks at it.
+	 *
+	 * @return the current count.
+	 */
+	public int getCount() {
+		return count;
+	}
+
+	/**
+	 * Test that this module is working.
+	 */
+	public static void selfTest() {
+		final int numWorkers = 6, numWaiters = 3;
+		final CountDownLatch done = new CountDownLatch(numWorkers);
+		final int[] finished = new int[1];
+
+		KThread[] waiters = new KThread[numWaiters];
+		for (int i = 0; i < numWaiters; i++) {
+			waiters[i] = new KThread(new Runnable() {
+				public void run() {
+					done.await();
+					Lib.assertTrue(finished[0] == numWorkers);
+				}
+			}).setName("latch waiter" + i);
+			waiters[i].fork();
+		}
+
+		for (int i = 0; i < numWorkers; i++) {
+			new KThread(new Runnable() {
+				public void run() {
+					KThread.yield();
+					finished[0]++;
+					done.countDown();
+				}
+			}).setName("latch worker" + i).fork();
+		}
+
+		done.await();
+		Lib.assertTrue(done.getCount() == 0 && finished[0] == numWorkers);
+		for (int i = 0; i < numWaiters; i++)
+			waiters[i].join();
+
+		// an open latch does not block
+		done.await();
+	}
+
+	private int count;
+
+	private ThreadQueue waitQueue = ThreadedKernel.scheduler
+			.newThreadQueue(false);
+}
@@ -0,0 +1,167 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+/**
+ * A scheduler that divides the CPU between <tt>SchedulingGroup</tt>s first,
+ * and only then between the threads of a group.
+ *
+ * <p>
+ * Every group has a weight and a virtual time, which is the CPU time its
+ * threads have used divided by its weight. A queue always gives access to a
+ * thread of the waiting group with the smallest virtual time, and the threads
+ * of one group take turns in FIFO order. So a group running ten threads gets
+ * no more of the CPU than a group of the same weight running one.
+ *
+ * <p>
+ * CPU time is charged through <tt>accountRun()</tt>, which <tt>KThread</tt>
+ * calls at the end of every run burst. A group that comes back after being
+ * idle is moved up to the virtual time of the last group served, so it cannot
+ * make up for the time it did not use.
+ */
+public class FairShareScheduler extends Scheduler {
+	/**
+	 * Allocate a new fair-share scheduler.
+	 */
+	public FairShareScheduler() {
+		kernelGroup = new SchedulingGroup("kernel");
+	}
+
+	/**
+	 * Allocate a new fair-share thread queue.
+	 *
+	 * @param transferPriority ignored. Groups have no priority to donate.
+	 * @return a new fair-share thread queue.
+	 */
+	public ThreadQueue newThreadQueue(boolean transferPriority) {
+		return new FairShareQueue();
+	}
+
+	/**
+	 * Charge a run burst of <i>thread</i> to its group.
+	 */
+	public void accountRun(KThread thread, long ticks) {
+		groupOf(thread).charge(ticks);
+	}
+
+	/**
+	 * Return the group <i>thread</i> is scheduled in.
+	 */
+	private SchedulingGroup groupOf(KThread thread) {
+		SchedulingGroup group = thread.getSchedulingGroup();
+		return group != null ? group : kernelGroup;
+	}
+
+	private class FairShareQueue extends ThreadQueue {
+		public void waitForAccess(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			SchedulingGroup group = groupOf(thread);
+			LinkedList<KThread> threads = waiting.get(group);
+			if (threads == null) {
+				// an idle group rejoins no earlier than the last group served
+				group.virtualTime = Math.max(group.virtualTime, servedUpTo);
+				threads = new LinkedList<KThread>();
+				waiting.put(group, threads);
+			}
+			threads.add(thread);
+		}
+
+		public KThread nextThread() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			if (waiting.isEmpty())
+				return null;
+
+			SchedulingGroup group = leastServed();
+			servedUpTo = Math.max(servedUpTo, group.virtualTime);
+			LinkedList<KThread> threads = waiting.get(group);
+			KThread thread = threads.removeFirst();
+			if (threads.isEmpty())
+				waiting.remove(group);
+
+			return thread;
+		}
+
+		public void acquire(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			Lib.assertTrue(waiting.isEmpty());
+		}
+
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			for (Map.Entry<SchedulingGroup, LinkedList<KThread>> e : waiting
+					.entrySet())
+				System.out.print(e.getKey() + ": " + e.getValue() + " ");
+		}
+
+		/**
+		 * Return the waiting group with the smallest virtual time, the one
+		 * that has waited longest among equals.
+		 */
+		private SchedulingGroup leastServed() {
+			SchedulingGroup best = null;
+			for (Iterator<SchedulingGroup> i = waiting.keySet().iterator(); i
+					.hasNext();) {
+				SchedulingGroup group = i.next();
+				if (best == null || group.virtualTime < best.virtualTime)
+					best = group;
+			}
+			return best;
+		}
+
+		/** Largest virtual time of any group given access so far. */
+		private long servedUpTo = 0;
+
+		/** Waiting threads by group, groups in the order they started waiting. */
+		private LinkedHashMap<SchedulingGroup, LinkedList<KThread>> waiting = new LinkedHashMap<SchedulingGroup, LinkedList<KThread>>();
+	}
+
+	/**
+	 * Run a group of several busy threads against a group of one busy thread
+	 * with three times the weight, and report the share each group got. Only
+	 * meaningful when this is the kernel's scheduler.
+	 */
+	public static void selfTest() {
+		if (!(ThreadedKernel.scheduler instanceof FairShareScheduler))
+			return;
+
+		final long duration = 200 * 1000;
+		SchedulingGroup noisy = new SchedulingGroup("noisy", 1);
+		SchedulingGroup quiet = new SchedulingGroup("quiet", 3);
+
+		Runnable busy = new Runnable() {
+			public void run() {
+				long t0 = Machine.timer().getTime();
+				while (Machine.timer().getTime() - t0 < duration) {
+					boolean intStatus = Machine.interrupt().disable();
+					Machine.interrupt().restore(intStatus);
+				}
+			}
+		};
+
+		KThread[] threads = new KThread[5];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new KThread(busy).setName("busy" + i);
+			threads[i].setSchedulingGroup(i == 0 ? quiet : noisy);
+			threads[i].fork();
+		}
+		for (int i = 0; i < threads.length; i++)
+			threads[i].join();
+
+		long total = noisy.getUsage() + quiet.getUsage();
+		System.out.println("FairShareScheduler: " + quiet + " used "
+				+ (100 * quiet.getUsage() / total) + "%, " + noisy + " with "
+				+ (threads.length - 1) + " threads used "
+				+ (100 * noisy.getUsage() / total) + "%");
+	}
+
+	private SchedulingGroup kernelGroup;
+}
@@ -7,9 +7,16 @@ import nachos.machine.*;
  * ability into fixed-sized groups to play matches with each other.
  * Implement the class <i>GameMatch</i> using <i>Lock</i> and
  * <i>Condition</i> to synchronize player threads into groups.
+ *
+ * <p>
+ * Every ability has its own wait queue (a <i>Lock</i>, a
+ * <i>Condition2</i> and the group being formed), so players of
+ * different abilities never contend with each other. The only state
+ * shared between abilities is the match counter, which is bumped in a
+ * short interrupts-disabled section when a group is complete.
  */
 public class GameMatch {
-    
+
     /* Three levels of player ability. */
     public static final int abilityBeginner = 1,
 	abilityIntermediate = 2,
@@ -21,6 +28,11 @@ public class GameMatch {
      * implementation may assume this number is always greater than zero.
      */
     public GameMatch (int numPlayersInMatch) {
+        this.numPlayersInMatch = numPlayersInMatch;
+        // index 0 unused so abilities index directly
+        queues = new AbilityQueue[abilityExpert + 1];
+        for (int ability = abilityBeginner; ability <= abilityExpert; ability++)
+            queues[ability] = new AbilityQueue();
     }
 
     /**
@@ -35,11 +47,143 @@ public class GameMatch {
      * two matches should have the same match number, match numbers
      * should be strictly monotonically increasing, and there should
      * be no gaps between match numbers.
-     * 
+     *
      * @param ability should be one of abilityBeginner, abilityIntermediate,
      * or abilityExpert; return -1 otherwise.
      */
     public int play (int ability) {
-	return -1;
+        if (ability < abilityBeginner || ability > abilityExpert)
+            return -1;
+
+        AbilityQueue queue = queues[ability];
+        queue.lock.acquire();
+
+        Group group = queue.forming;
+        group.size++;
+
+        if (group.size == numPlayersInMatch) {
+            // last player in: number the match and release the whole group
+            group.matchNumber = nextMatchNumber();
+            queue.forming = new Group();
+            queue.matchFormed.wakeAll();
+        }
+        else {
+            while (group.matchNumber == 0)
+                queue.matchFormed.sleep();
+        }
+
+        queue.lock.release();
+        return group.matchNumber;
+    }
+
+    /**
+     * Hand out the next match number. Called with the lock of one ability
+     * queue held; interrupts are disabled just for the increment so that
+     * the abilities do not share a lock.
+     */
+    private int nextMatchNumber () {
+        boolean intStatus = Machine.interrupt().disable();
+        int number = ++matchCount;
+        Machine.interrupt().restore(intStatus);
+        return number;
+    }
+
+    /**
+     * The players of one ability that are waiting for their group to fill.
+     */
+    private static class AbilityQueue {
+        Lock lock = new Lock();
+        Condition2 matchFormed = new Condition2(lock);
+        Group forming = new Group();
+    }
+
+    /**
+     * A group of players being formed. <tt>matchNumber</tt> stays 0 until
+     * the group is complete.
+     */
+    private static class Group {
+        int size = 0;
+        int matchNumber = 0;
+    }
+
+    private int numPlayersInMatch;
+
+    private AbilityQueue[] queues;
+
+    private int matchCount = 0;
+
+    // Place GameMatch test code inside of the GameMatch class.
+
+    /**
+     * Load test: run <i>numPlayers</i> player threads with mixed
+     * abilities, check that every match has exactly
+     * <i>numPlayersInMatch</i> players of one ability and that match
+     * numbers have no gaps, and report how long players waited.
+     */
+    public static void loadTest (final int numPlayers, final int numPlayersInMatch) {
+        final GameMatch match = new GameMatch(numPlayersInMatch);
+        final int[] matchOf = new int[numPlayers];
+        final long[] waited = new long[numPlayers];
+
+        KThread[] players = new KThread[numPlayers];
+        for (int i = 0; i < numPlayers; i++) {
+            final int id = i;
+            final int ability = abilityBeginner + (i % 3);
+            players[i] = new KThread( new Runnable () {
+                public void run() {
+                    long t0 = Machine.timer().getTime();
+                    matchOf[id] = match.play(ability);
+                    waited[id] = Machine.timer().getTime() - t0;
+                }
+            });
+            players[i].setName("player" + i);
+        }
+
+        // TCB caps the number of live threads, so keep a sliding window of
+        // forked players and join the oldest before forking past it
+        int window = TCB.maxThreads - 50;
+        long t0 = Machine.timer().getTime();
+        for (int i = 0; i < numPlayers; i++) {
+            if (i >= window)
+                players[i - window].join();
+            players[i].fork();
+        }
+        for (int i = Math.max(0, numPlayers - window); i < numPlayers; i++)
+            players[i].join();
+        long t1 = Machine.timer().getTime();
+
+        int numMatches = numPlayers / numPlayersInMatch;
+        int[] members = new int[numMatches + 1];
+        int[] abilityOf = new int[numMatches + 1];
+        long totalWait = 0, maxWait = 0;
+        for (int i = 0; i < numPlayers; i++) {
+            int m = matchOf[i];
+            Lib.assertTrue(m >= 1 && m <= numMatches, "Bad match number " + m);
+            int ability = abilityBeginner + (i % 3);
+            Lib.assertTrue(abilityOf[m] == 0 || abilityOf[m] == ability,
+                    "Mixed abilities in match " + m);
+            abilityOf[m] = ability;
+            members[m]++;
+            totalWait += waited[i];
+            maxWait = Math.max(maxWait, waited[i]);
+        }
+        for (int m = 1; m <= numMatches; m++)
+            Lib.assertTrue(members[m] == numPlayersInMatch,
+                    "Match " + m + " has " + members[m] + " players");
+
+        System.out.println("GameMatch: " + numPlayers + " players, " + numMatches
+                + " matches in " + (t1 - t0) + " ticks, time to match avg "
+                + (totalWait / numPlayers) + " max " + maxWait + " ticks");
+    }
+
+    // Invoke GameMatch.selfTest() from ThreadedKernel.selfTest()
+
+    public static void selfTest() {
+        GameMatch match = new GameMatch(2);
+        Lib.assertTrue(match.play(0) == -1);
+        Lib.assertTrue(match.play(abilityExpert + 1) == -1);
+
+        // every ability count is a multiple of the match size
+        loadTest(3 * 4 * 250, 4);
     }
 }
@@ -3,7 +3,6 @@ package nachos.threads;
 import nachos.machine.*;
 
 import java.net.FileNameMap;
-import java.util.HashSet;
 
 
 /**
@@ -60,6 +59,7 @@ public class KThread {
 	public KThread() {
 		if (currentThread != null) {
 			tcb = new TCB();
+			schedulingGroup = currentThread.schedulingGroup;
 		}
 		else {
 			readyQueue = ThreadedKernel.scheduler.newThreadQueue(false);
@@ -206,8 +206,12 @@ public class KThread {
 		toBeDestroyed = currentThread;
 
 		currentThread.status = statusFinished;
-		if (currentThread().joinedFrom != null) {
-			currentThread().joinedFrom.ready();
+
+		// release every joiner at once
+		if (currentThread.joinQueue != null) {
+			KThread joiner;
+			while ((joiner = currentThread.joinQueue.nextThread()) != null)
+				joiner.ready();
 		}
 
 		sleep();
@@ -276,37 +280,50 @@ public class KThread {
 		Lib.assertTrue(status != statusReady);
 
 		status = statusReady;
-		if (this != idleThread)
+		if (this != idleThread) {
 			readyQueue.waitForAccess(this);
+			readyCount++;
+		}
 
 		Machine.autoGrader().readyThread(this);
 	}
 
+	/**
+	 * Return the number of threads on the ready queue, not counting the current
+	 * thread or the idle thread.
+	 */
+	static int readyCount() {
+		return readyCount;
+	}
+
 	/**
 	 * Waits for this thread to finish. If this thread is already finished,
-	 * return immediately. This method must only be called once; the second call
-	 * is not guaranteed to return. This thread must not be the current thread.
+	 * return immediately. Any number of threads may join the same thread, and a
+	 * thread may be joined more than once. This thread must not be the current
+	 * thread.
+	 * 
+	 * <p>
+	 * Joiners wait on a queue owned by this thread that transfers priority, so
+	 * under a priority scheduler this thread runs with at least the priority
+	 * of the threads waiting for it.
 	 */
 	public void join() {
 		Lib.debug(dbgThread, "Joining to thread: " + toString());
-		System.out.println("Joining to thread: " + toString());
+
 		Lib.assertTrue(this != currentThread);
-		Lib.assertTrue(!joinedThreads.contains(this));
-		Machine.interrupt().disable();
-		if (this.status != statusFinished) {
-			this.joinedFrom = currentThread();
-			System.out.println("Joined from: " + this.joinedFrom);
-			joinedThreads.add(this);
-/*			if (this.status != statusReady) {
-				this.ready();
-			}*/
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		if (status != statusFinished) {
+			if (joinQueue == null) {
+				joinQueue = ThreadedKernel.scheduler.newThreadQueue(true);
+				joinQueue.acquire(this);
+			}
+			joinQueue.waitForAccess(currentThread);
 			sleep();
-			Machine.interrupt().enable();
-			return;
-		} else {
-			System.out.println("Child process already finished before joining, parent continues.");
-			return;
 		}
+
+		Machine.interrupt().restore(intStatus);
 	}
 
 	/**
@@ -340,8 +357,12 @@ public class KThread {
 	 */
 	private static void runNextThread() {
 		KThread nextThread = readyQueue.nextThread();
-		if (nextThread == null)
+		if (nextThread == null) {
 			nextThread = idleThread;
+		}
+		else {
+			readyCount--;
+		}
 
 		nextThread.run();
 	}
@@ -397,6 +418,10 @@ public class KThread {
 
 		status = statusRunning;
 
+		burstStart = Machine.timer().getTime();
+		if (ThreadedKernel.alarm != null)
+			preemptDeadline = burstStart + ThreadedKernel.alarm.quantumFor(this);
+
 		if (toBeDestroyed != null) {
 			toBeDestroyed.tcb.destroy();
 			toBeDestroyed.tcb = null;
@@ -411,6 +436,49 @@ public class KThread {
 	protected void saveState() {
 		Lib.assertTrue(Machine.interrupt().disabled());
 		Lib.assertTrue(this == currentThread);
+
+		// fold the burst that just ended into the running average
+		long burst = Machine.timer().getTime() - burstStart;
+		averageBurst = (3 * averageBurst + burst) / 4;
+		ThreadedKernel.scheduler.accountRun(this, burst);
+	}
+
+	/**
+	 * Return the scheduling group of this thread, or <tt>null</tt> if it was
+	 * never given one.
+	 */
+	public SchedulingGroup getSchedulingGroup() {
+		return schedulingGroup;
+	}
+
+	/**
+	 * Move this thread to another scheduling group. Threads this thread creates
+	 * afterwards start in the same group. Only the
+	 * <tt>FairShareScheduler</tt> uses groups. This thread must not be on a
+	 * wait queue.
+	 * 
+	 * @param group the new scheduling group.
+	 * @return this thread.
+	 */
+	public KThread setSchedulingGroup(SchedulingGroup group) {
+		this.schedulingGroup = group;
+		return this;
+	}
+
+	/**
+	 * Return the average length, in ticks, of this thread's recent run bursts.
+	 * Recent bursts weigh more than older ones.
+	 */
+	long averageBurst() {
+		return averageBurst;
+	}
+
+	/**
+	 * Return the time at which this thread's current time slice ends. The timer
+	 * interrupt only preempts the thread once this time has passed.
+	 */
+	long preemptDeadline() {
+		return preemptDeadline;
 	}
 
 	/**
@@ -513,7 +581,7 @@ public class KThread {
 
 	/**
 	 * Test for the situation that join is called on a thread
-	 * multiple times by the parent and nachos should assert.
+	 * multiple times by the parent. The second join returns at once.
 	 */
 
 	private static void joinTest3() {
@@ -521,75 +589,52 @@ public class KThread {
 		System.out.println("Start join test 3.");
 		KThread child1 = new KThread(new Runnable() {
 			public void run() {
-				System.out.println("I can't be joined more than once!");
+				System.out.println("I can be joined more than once!");
 			}
 		});
 		child1.setName("child1");
 		child1.fork();
 		child1.join();
-		boolean asserted = false;
-		try {
-			child1.join();
-		}
-		catch(Error e) {
-			asserted = true;
-			System.out.println("Asserted on multiple join on child 1");
-			System.out.println("***PASSED***");
-		}
-		finally {
-			try {
-				Lib.assertTrue(asserted);
-			} catch (Error e) {
-				System.out.println("***FAILED***");
-			}
-		}
+		child1.join();
+		Lib.assertTrue((child1.status == statusFinished), " Expected child1 to be finished.");
+		System.out.println("***PASSED***");
 	}
 
 	/**
 	 * Test for the situation that join is called on a thread
-	 * multiple times by different threads and nachos should assert.
+	 * by different threads, and all of them are woken up.
 	 */
 
 	private static void joinTest4() {
 		System.out.println("Start join test 4.");
 		// Create the child
-		KThread child1 = new KThread(new Runnable() {
+		final KThread child1 = new KThread(new Runnable() {
 			public void run() {
-				System.out.println("I can't be joined more than once!");
+				for (int i = 0; i < 3; i++)
+					KThread.yield();
+				System.out.println("I can be joined by many threads!");
 			}
 		});
 		child1.setName("child1");
-		// Create a thread that calls join on child1
-		KThread child2 = new KThread(new Runnable() {
-			public void run() {
-				child1.join();
-				System.out.println("Child 1 should be finished." + (child1.status == statusFinished));
-			}
-		});
-		child2.setName("child2");
-		child2.fork();
-		child1.fork();
-		// Busy wait on main
-		for (int i = 0; i < 5; i++) {
-			System.out.println("busy...");
-			KThread.currentThread().yield();
-		}
-		// Main program call join on child 1 and this should trigger assert
-		boolean asserted = false;
-		try {
-			child1.join();
-		} catch (Error e) {
-			asserted = true;
-			System.out.println("Asserted on multiple join on child 1");
-		} finally {
-			try {
-				Lib.assertTrue(asserted);
-			} catch (Error e) {
-				System.out.println("***FAILED***");
-			} finally {
-				System.out.println("***PASSED***");
-			}
+		// Create threads that call join on child1
+		KThread[] joiners = new KThread[3];
+		for (int i = 0; i < joiners.length; i++) {
+			joiners[i] = new KThread(new Runnable() {
+				public void run() {
+					child1.join();
+					System.out.println(currentThread() + ": child 1 should be finished. " + (child1.status == statusFinished));
+					Lib.assertTrue(child1.status == statusFinished);
+				}
+			});
+			joiners[i].setName("joiner" + i).fork();
 		}
+		child1.fork();
+		// Main joins child 1 as well
+		child1.join();
+		Lib.assertTrue((child1.status == statusFinished), " Expected child1 to be finished.");
+		for (int i = 0; i < joiners.length; i++)
+			joiners[i].join();
+		System.out.println("***PASSED***");
 	}
 
 	/**
@@ -598,26 +643,29 @@ public class KThread {
 	 */
 	private static void joinTest5() {
 		System.out.println("Start join test 5.");
-		// Create a child thread
-		KThread main  = currentThread();
-		KThread child1 = new KThread(new Runnable() {
-			public void run() {
-				System.out.println("Join with the main thread");
-				currentThread().joinedFrom.join();
-				System.out.println("Not Printed");
-				System.out.println(currentThread());
-				Lib.assertTrue(currentThread().status == statusFinished);
-			}
-		});
-		child1.setName("child1");
-		child1.fork();
-		child1.join();
-		try {
-			Lib.assertTrue(child1.status == statusBlocked);
-		} catch (Error e) {
-			System.out.println("***FAILED***");
+		final int[] finished = new int[2];
+		KThread[] parents = new KThread[2];
+		for (int i = 0; i < parents.length; i++) {
+			final int pair = i;
+			final KThread child = new KThread(new Runnable() {
+				public void run() {
+					KThread.yield();
+					finished[pair]++;
+				}
+			}).setName("child" + i);
+			parents[i] = new KThread(new Runnable() {
+				public void run() {
+					child.fork();
+					child.join();
+					// only our own child has to be done
+					Lib.assertTrue(finished[pair] == 1);
+				}
+			}).setName("parent" + i);
+			parents[i].fork();
 		}
-		System.out.println("child 1 called main.join in it's process. Main continues to execute.");
+		for (int i = 0; i < parents.length; i++)
+			parents[i].join();
+		Lib.assertTrue(finished[0] == 1 && finished[1] == 1);
 		System.out.println("***PASSED***");
 	}
 
@@ -669,6 +717,8 @@ public class KThread {
 	 */
 	public Object schedulingState = null;
 
+	private SchedulingGroup schedulingGroup = null;
+
 	private static final int statusNew = 0;
 
 	private static final int statusReady = 1;
@@ -692,6 +742,15 @@ public class KThread {
 
 	private TCB tcb;
 
+	/** Time this thread last started running. */
+	private long burstStart = 0;
+
+	/** Moving average of this thread's run bursts, in ticks. */
+	private long averageBurst = Stats.TimerTicks / 2;
+
+	/** End of this thread's current time slice. */
+	private long preemptDeadline = Long.MAX_VALUE;
+
 	/**
 	 * Unique identifer for this thread. Used to deterministically compare
 	 * threads.
@@ -703,13 +762,14 @@ public class KThread {
 
 	private static ThreadQueue readyQueue = null;
 
+	private static int readyCount = 0;
+
 	private static KThread currentThread = null;
 
 	private static KThread toBeDestroyed = null;
 
 	private static KThread idleThread = null;
 
-	private static HashSet<KThread> joinedThreads = new HashSet<>();
-
-	private KThread joinedFrom;
+	/** Threads waiting in <tt>join()</tt>, created by the first join. */
+	private ThreadQueue joinQueue = null;
 }
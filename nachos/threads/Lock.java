@@ -63,6 +63,27 @@ public class Lock {
 		Machine.interrupt().restore(intStatus);
 	}
 
+	/**
+	 * Queue a thread that is blocked on a condition variable associated with
+	 * this lock directly on this lock's wait queue, instead of making it ready.
+	 * The lock must be held (by the thread doing the waking), so the blocked
+	 * thread runs only once a later <tt>release()</tt> hands the lock to it.
+	 * This is the <i>wait morphing</i> used by <tt>Condition</tt> and
+	 * <tt>Condition2</tt> to avoid waking a thread that would immediately block
+	 * again in <tt>acquire()</tt>.
+	 * 
+	 * <p>
+	 * Must be called with interrupts disabled.
+	 * 
+	 * @param thread the blocked thread that should receive this lock.
+	 */
+	void morphWaiter(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+		Lib.assertTrue(lockHolder != null && lockHolder != thread);
+
+		waitQueue.waitForAccess(thread);
+	}
+
 	/**
 	 * Test if the current thread holds this lock.
 	 * 
@@ -0,0 +1,186 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A <i>phaser</i> is a reusable barrier whose number of parties can change
+ * between phases. Threads <tt>register()</tt> to take part, then each phase
+ * every registered party arrives once, either waiting for the others with
+ * <tt>arriveAndAwaitAdvance()</tt>, or going on with <tt>arrive()</tt> or
+ * leaving with <tt>arriveAndDeregister()</tt>. When the last party of a phase
+ * arrives the phase number goes up and every waiter is released at once.
+ *
+ * <p>
+ * Only threads of the current phase can be waiting, so one
+ * <tt>ThreadQueue</tt> is enough and advancing drains all of it.
+ */
+public class Phaser {
+	/**
+	 * Allocate a new phaser with no registered parties.
+	 */
+	public Phaser() {
+		this(0);
+	}
+
+	/**
+	 * Allocate a new phaser.
+	 *
+	 * @param parties the number of parties registered initially.
+	 */
+	public Phaser(int parties) {
+		Lib.assertTrue(parties >= 0);
+
+		this.parties = parties;
+	}
+
+	/**
+	 * Add a party to this phaser. The party takes part starting with the
+	 * current phase.
+	 *
+	 * @return the current phase number.
+	 */
+	public int register() {
+		boolean intStatus = Machine.interrupt().disable();
+
+		parties++;
+		int current = phase;
+
+		Machine.interrupt().restore(intStatus);
+		return current;
+	}
+
+	/**
+	 * Arrive at the current phase without waiting for the other parties.
+	 *
+	 * @return the phase number arrived at.
+	 */
+	public int arrive() {
+		boolean intStatus = Machine.interrupt().disable();
+
+		int current = arrive(false);
+
+		Machine.interrupt().restore(intStatus);
+		return current;
+	}
+
+	/**
+	 * Arrive at the current phase and stop taking part in later phases.
+	 *
+	 * @return the phase number arrived at.
+	 */
+	public int arriveAndDeregister() {
+		boolean intStatus = Machine.interrupt().disable();
+
+		int current = arrive(true);
+
+		Machine.interrupt().restore(intStatus);
+		return current;
+	}
+
+	/**
+	 * Arrive at the current phase and wait for every other registered party to
+	 * arrive.
+	 *
+	 * @return the number of the phase that was just started.
+	 */
+	public int arriveAndAwaitAdvance() {
+		boolean intStatus = Machine.interrupt().disable();
+
+		int current = arrive(false);
+		if (phase == current) {
+			waitQueue.waitForAccess(KThread.currentThread());
+			KThread.sleep();
+		}
+		int next = phase;
+
+		Machine.interrupt().restore(intStatus);
+		return next;
+	}
+
+	/**
+	 * Return the current phase number. Phases are numbered from 0.
+	 *
+	 * @return the current phase number.
+	 */
+	public int getPhase() {
+		return phase;
+	}
+
+	/**
+	 * Return the number of registered parties.
+	 *
+	 * @return the number of registered parties.
+	 */
+	public int getRegisteredParties() {
+		return parties;
+	}
+
+	/**
+	 * Record one arrival, advancing the phase if it was the last one.
+	 * Interrupts must be disabled.
+	 */
+	private int arrive(boolean deregister) {
+		Lib.assertTrue(arrived < parties, "arrival by unregistered party");
+
+		int current = phase;
+
+		if (deregister)
+			parties--;
+		else
+			arrived++;
+
+		if (arrived == parties) {
+			arrived = 0;
+			phase++;
+			Barrier.readyAll(waitQueue);
+		}
+
+		return current;
+	}
+
+	/**
+	 * Test that this module is working.
+	 */
+	public static void selfTest() {
+		final int numThreads = 5;
+		final Phaser phaser = new Phaser(1);
+		final int[] reached = new int[numThreads];
+
+		KThread[] threads = new KThread[numThreads];
+		for (int i = 0; i < numThreads; i++) {
+			final int id = i;
+			phaser.register();
+			threads[i] = new KThread(new Runnable() {
+				public void run() {
+					// thread i takes part in phases 0..i and then leaves
+					for (int p = 0; p < id; p++) {
+						reached[id] = p;
+						Lib.assertTrue(phaser.arriveAndAwaitAdvance() == p + 1);
+						for (int j = 0; j < numThreads; j++)
+							Lib.assertTrue(reached[j] >= Math.min(p, j));
+					}
+					reached[id] = id;
+					phaser.arriveAndDeregister();
+				}
+			}).setName("phaser" + i);
+			threads[i].fork();
+		}
+
+		// the main thread takes part in every phase
+		for (int p = 0; p < numThreads; p++)
+			Lib.assertTrue(phaser.arriveAndAwaitAdvance() == p + 1);
+		Lib.assertTrue(phaser.getRegisteredParties() == 1);
+
+		for (int i = 0; i < numThreads; i++)
+			threads[i].join();
+	}
+
+	private int parties;
+
+	private int arrived = 0;
+
+	private int phase = 0;
+
+	private ThreadQueue waitQueue = ThreadedKernel.scheduler
+			.newThreadQueue(false);
+}
@@ -5,6 +5,7 @@ import nachos.machine.*;
 import java.util.TreeSet;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedList;
 
 /**
  * A scheduler that chooses threads based on their priorities.
@@ -112,6 +113,57 @@ public class PriorityScheduler extends Scheduler {
 	 */
 	public static final int priorityMaximum = 7;
 
+	/**
+	 * Test that a thread joining a low-priority thread donates its priority:
+	 * the low-priority thread must finish before a medium-priority thread
+	 * that is ready the whole time. Only meaningful when this is the kernel's
+	 * scheduler.
+	 */
+	public static void selfTest() {
+		if (!(ThreadedKernel.scheduler instanceof PriorityScheduler))
+			return;
+
+		final LinkedList<String> finished = new LinkedList<String>();
+		Runnable spin = new Runnable() {
+			public void run() {
+				for (int i = 0; i < 10; i++)
+					KThread.yield();
+				finished.add(KThread.currentThread().getName());
+			}
+		};
+		final KThread low = new KThread(spin).setName("low");
+		KThread medium = new KThread(spin).setName("medium");
+		KThread high = new KThread(new Runnable() {
+			public void run() {
+				low.join();
+				finished.add(KThread.currentThread().getName());
+			}
+		}).setName("high");
+
+		boolean intStatus = Machine.interrupt().disable();
+		ThreadedKernel.scheduler.setPriority(priorityMaximum);
+		ThreadedKernel.scheduler.setPriority(low, 1);
+		ThreadedKernel.scheduler.setPriority(medium, 4);
+		ThreadedKernel.scheduler.setPriority(high, 6);
+		Machine.interrupt().restore(intStatus);
+
+		low.fork();
+		medium.fork();
+		high.fork();
+
+		// let them all run, then wait
+		intStatus = Machine.interrupt().disable();
+		ThreadedKernel.scheduler.setPriority(priorityMinimum);
+		Machine.interrupt().restore(intStatus);
+		medium.join();
+		high.join();
+
+		System.out.println("PriorityScheduler: finish order " + finished);
+		Lib.assertTrue(finished.indexOf("low") < finished.indexOf("medium"),
+				"join did not donate priority");
+		Lib.assertTrue(finished.indexOf("high") < finished.indexOf("medium"));
+	}
+
 	/**
 	 * Return the scheduling state of the specified thread.
 	 * 
@@ -145,8 +197,18 @@ public class PriorityScheduler extends Scheduler {
 
 		public KThread nextThread() {
 			Lib.assertTrue(Machine.interrupt().disabled());
-			// implement me
-			return null;
+
+			ThreadState next = pickNextThread();
+			if (next == null) {
+				// nobody to hand the resource to, so nobody owns it now
+				if (holder != null)
+					holder.release(this);
+				return null;
+			}
+
+			waiters.remove(next);
+			next.acquire(this);
+			return next.thread;
 		}
 
 		/**
@@ -156,13 +218,34 @@ public class PriorityScheduler extends Scheduler {
 		 * @return the next thread that <tt>nextThread()</tt> would return.
 		 */
 		protected ThreadState pickNextThread() {
-			// implement me
-			return null;
+			ThreadState best = null;
+			for (ThreadState state : waiters) {
+				// waiters are in arrival order, so the first of the highest
+				// priority has waited longest
+				if (best == null
+						|| state.getEffectivePriority() > best.getEffectivePriority())
+					best = state;
+			}
+			return best;
+		}
+
+		/**
+		 * Return the highest effective priority of the threads waiting on this
+		 * queue, or <tt>priorityMinimum</tt> if none are.
+		 */
+		int maxWaitingPriority() {
+			int max = priorityMinimum;
+			for (ThreadState state : waiters)
+				max = Math.max(max, state.getEffectivePriority());
+			return max;
 		}
 
 		public void print() {
 			Lib.assertTrue(Machine.interrupt().disabled());
-			// implement me (if you want)
+
+			for (ThreadState state : waiters)
+				System.out.print(state.thread + "(" + state.getEffectivePriority()
+						+ ") ");
 		}
 
 		/**
@@ -170,6 +253,12 @@ public class PriorityScheduler extends Scheduler {
 		 * threads to the owning thread.
 		 */
 		public boolean transferPriority;
+
+		/** The threads waiting on this queue, in arrival order. */
+		LinkedList<ThreadState> waiters = new LinkedList<ThreadState>();
+
+		/** The thread that last acquired this queue, if any. */
+		ThreadState holder = null;
 	}
 
 	/**
@@ -207,8 +296,7 @@ public class PriorityScheduler extends Scheduler {
 		 * @return the effective priority of the associated thread.
 		 */
 		public int getEffectivePriority() {
-			// implement me
-			return priority;
+			return effectivePriority;
 		}
 
 		/**
@@ -222,7 +310,7 @@ public class PriorityScheduler extends Scheduler {
 
 			this.priority = priority;
 
-			// implement me
+			update();
 		}
 
 		/**
@@ -238,7 +326,11 @@ public class PriorityScheduler extends Scheduler {
 		 * @see nachos.threads.ThreadQueue#waitForAccess
 		 */
 		public void waitForAccess(PriorityQueue waitQueue) {
-			// implement me
+			waitQueue.waiters.add(this);
+			waitingOn = waitQueue;
+
+			if (waitQueue.transferPriority && waitQueue.holder != null)
+				waitQueue.holder.update();
 		}
 
 		/**
@@ -252,7 +344,47 @@ public class PriorityScheduler extends Scheduler {
 		 * @see nachos.threads.ThreadQueue#nextThread
 		 */
 		public void acquire(PriorityQueue waitQueue) {
-			// implement me
+			if (waitingOn == waitQueue)
+				waitingOn = null;
+
+			if (waitQueue.holder != null)
+				waitQueue.holder.release(waitQueue);
+			waitQueue.holder = this;
+
+			if (waitQueue.transferPriority) {
+				acquired.add(waitQueue);
+				update();
+			}
+		}
+
+		/**
+		 * Called when the associated thread stops owning <tt>waitQueue</tt>,
+		 * because another thread acquired it or nobody was left to.
+		 */
+		void release(PriorityQueue waitQueue) {
+			waitQueue.holder = null;
+			if (acquired.remove(waitQueue))
+				update();
+		}
+
+		/**
+		 * Recompute the effective priority: the highest of the thread's own
+		 * priority and the effective priorities of the threads waiting on the
+		 * queues it owns. If it changed, pass the change on to the owner of the
+		 * queue this thread is waiting on, so that donation is transitive.
+		 */
+		void update() {
+			int effective = priority;
+			for (PriorityQueue queue : acquired)
+				effective = Math.max(effective, queue.maxWaitingPriority());
+
+			if (effective == effectivePriority)
+				return;
+			effectivePriority = effective;
+
+			if (waitingOn != null && waitingOn.transferPriority
+					&& waitingOn.holder != null && waitingOn.holder != this)
+				waitingOn.holder.update();
 		}
 
 		/** The thread with which this object is associated. */
@@ -260,5 +392,14 @@ public class PriorityScheduler extends Scheduler {
 
 		/** The priority of the associated thread. */
 		protected int priority;
+
+		/** The priority the associated thread is scheduled with. */
+		protected int effectivePriority = priorityMinimum;
+
+		/** The donating queues the associated thread owns. */
+		protected LinkedList<PriorityQueue> acquired = new LinkedList<PriorityQueue>();
+
+		/** The queue the associated thread is waiting on, if any. */
+		protected PriorityQueue waitingOn = null;
 	}
 }
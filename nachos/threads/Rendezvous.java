@@ -49,26 +49,28 @@ import java.util.HashMap;
 
 /**
  * A <i>Rendezvous</i> allows threads to synchronously exchange values.
+ *
+ * <p>
+ * Every tag has its own slot. The first thread to arrive at a tag parks in
+ * the slot and sleeps; the second thread takes the parked value, leaves its
+ * own value in the parked thread's record and makes it ready. Exchanges on
+ * different tags never touch the same slot, and each exchange costs a single
+ * context switch. Slots and their wait records are kept and reused, so a tag
+ * that is exchanged on repeatedly does not allocate.
+ *
+ * <p>
+ * Like <tt>Condition2</tt>, this class disables interrupts for
+ * synchronization.
  */
 public class Rendezvous {
-    private Lock lock;
-    private Condition ex_cv; // for exchange !
-    // private int tag = -1;
-    // hashmap
-    HashMap<Integer, Integer> pair_tv; // hash map for tag and value
-    HashMap<Integer, Condition> pair_tc; // hash map for tag and condition  !
-    HashMap<Integer, Boolean> pair_lookup; // hash map for tag and boolean
-    boolean exchanging = false;
+    // one exchange slot per tag, created the first time the tag is used
+    private HashMap<Integer, Slot> slots;
 
     /**
      * Allocate a new Rendezvous.
      */
     public Rendezvous () {
-        lock = new Lock();
-        ex_cv = new Condition(lock); //!
-        pair_tv = new HashMap<Integer, Integer>();
-        pair_tc = new HashMap<Integer, Condition>(); //!
-        pair_lookup = new HashMap<>();
+        slots = new HashMap<Integer, Slot>();
     }
 
     /**
@@ -87,64 +89,77 @@ public class Rendezvous {
      * @param tag the synchronization tag.
      * @param value the integer to exchange.
      */
-    // check hm.contain(tag)
-    //      no:
-    //          target -> hp
-    //          sleep() on wait
-    //      yes:
-    //          wake A from wait
-    //
     public int exchange (int tag, int value) {
+        boolean intStatus = Machine.interrupt().disable();
 
-        // no such tag
-        // lock
-        lock.acquire();
-
-        System.out.println("check ex for " + KThread.currentThread().getName() + " ex: " + exchanging);
-        while( exchanging ){
-            // System.out.println("Find " + KThread.currentThread().getName() + ", but got sleep during exchange happen.");
-            ex_cv.sleep(); // additional thread
+        // one lookup per call, the slot stays around for the next exchange
+        Slot slot = slots.get(tag);
+        if (slot == null) {
+            slot = new Slot();
+            slots.put(tag, slot);
         }
 
-
-       System.out.println("thread: " + KThread.currentThread().getName());
-       // System.out.println("Contain the key? " + pair_tv.containsKey(tag));
-       // System.out.println("Look up the key? " + pair_lookup.get(tag));
-
-
-        if( !pair_tv.containsKey(tag) || !pair_lookup.get(tag) ){ // no such tag
-            System.out.println(KThread.currentThread().getName() + " in if block");
-            pair_lookup.put(tag, true); // set the tag in lookup
-            pair_tv.put(tag, value); // put tag-value
-            Condition tag_cv = new Condition(lock); // cv for same tag !!
-            pair_tc.put(tag, tag_cv); // put tag associated with condition
-            System.out.println("Gonna sleep");
-            tag_cv.sleep(); // sleep for waiting
-            exchanging = false; // after t1 wake up
-            pair_lookup.put(tag, false); // gonna exchange and set lookup false
-            ex_cv.wakeAll(); // why not wake? : new thread will sleep as well
+        int ret_val;
+        Waiter partner = slot.waiting;
+        if (partner != null) {
+            // second thread: hand our value straight to the parked thread
+            slot.waiting = null;
+            ret_val = partner.value;
+            partner.value = value;
+            partner.thread.ready();
         }
-
-        // tag exists
-        // lock
-        else{
-            System.out.println(KThread.currentThread().getName() + " in else block");
-            Condition cur_cv = pair_tc.get(tag); // get the cv for exchange /!
-            cur_cv.wake(); // wake the match thread
-            exchanging = true; // set exchange flag
-            // pair_lookup.put(tag, false);
-            System.out.println("Now ex: " + exchanging);
+        else {
+            // first thread: park in the slot until a partner shows up
+            Waiter self = slot.take();
+            self.thread = KThread.currentThread();
+            self.value = value;
+            slot.waiting = self;
+
+            KThread.sleep();
+
+            // the partner left its value in our record
+            ret_val = self.value;
+            self.thread = null;
+            slot.recycle(self);
         }
 
-        // get t1.val to t2
-        int ret_val = pair_tv.get(tag); // get t1 saved value
-        pair_tv.put(tag,value); // update t2 value
+        Machine.interrupt().restore(intStatus);
+        return ret_val;
+    }
 
-        lock.release();
+    /**
+     * A thread parked in a slot, waiting for its partner. On wake-up
+     * <tt>value</tt> holds the partner's value.
+     */
+    private static class Waiter {
+        KThread thread;
+        int value;
+        Waiter next;
+    }
 
-        // System.out.println(KThread.currentThread().getName() + " got return value");
-        return ret_val;
+    /**
+     * The exchange point of one tag. At most one thread is parked at a time,
+     * but a woken thread may not have collected its value yet when the next
+     * exchange on the same tag starts, so spare records are kept in a small
+     * free list.
+     */
+    private static class Slot {
+        Waiter waiting;
+        Waiter free;
+
+        Waiter take() {
+            Waiter w = free;
+            if (w == null)
+                return new Waiter();
+            free = w.next;
+            w.next = null;
+            return w;
+        }
 
+        void recycle(Waiter w) {
+            w.next = free;
+            free = w;
+        }
     }
 
     // Place Rendezvous test code inside of the Rendezvous class.
@@ -252,10 +267,52 @@ public class Rendezvous {
         t6.join();
     }
 
+    // Benchmark: many tags exchanging at the same time. Two threads meet on
+    // every tag for a number of rounds; tags never block each other, so the
+    // total cost grows with the number of exchanges only.
+
+    public static void rendezTest2() {
+        final int numTags = 64;
+        final int rounds = 20;
+        final Rendezvous r = new Rendezvous();
+
+        KThread[] threads = new KThread[numTags * 2];
+        for (int t = 0; t < numTags; t++) {
+            for (int side = 0; side < 2; side++) {
+                final int tag = t;
+                final int me = side;
+                threads[t * 2 + side] = new KThread( new Runnable () {
+                    public void run() {
+                        for (int i = 0; i < rounds; i++) {
+                            int send = (tag << 16) | (i << 1) | me;
+                            int expect = (tag << 16) | (i << 1) | (1 - me);
+                            int recv = r.exchange (tag, send);
+                            Lib.assertTrue (recv == expect, "Was expecting " + expect + " but received " + recv);
+                        }
+                    }
+                });
+                threads[t * 2 + side].setName("tag" + t + "." + side);
+            }
+        }
+
+        long t0 = Machine.timer().getTime();
+        for (int i = 0; i < threads.length; i++) {
+            threads[i].fork();
+        }
+        for (int i = 0; i < threads.length; i++) {
+            threads[i].join();
+        }
+        long t1 = Machine.timer().getTime();
+
+        System.out.println ("rendezTest2: " + (numTags * rounds) + " exchanges on "
+                + numTags + " tags in " + (t1 - t0) + " ticks");
+    }
+
     // Invoke Rendezvous.selfTest() from ThreadedKernel.selfTest()
 
     public static void selfTest() {
         // place calls to your Rendezvous tests that you implement here
         rendezTest1();
+        rendezTest2();
     }
 }
\ No newline at end of file
@@ -151,4 +151,16 @@ public abstract class Scheduler {
 	public boolean decreasePriority() {
 		return false;
 	}
+
+	/**
+	 * Tell the scheduler that <i>thread</i> just ran for <i>ticks</i> clock
+	 * ticks. Called by <tt>KThread</tt> at the end of every run burst, with
+	 * interrupts disabled. Schedulers that do not track CPU usage can ignore
+	 * this.
+	 * 
+	 * @param thread the thread that was running.
+	 * @param ticks the length of the run burst.
+	 */
+	public void accountRun(KThread thread, long ticks) {
+	}
 }
@@ -0,0 +1,99 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A group of threads that share one slice of the CPU under a
+ * <tt>FairShareScheduler</tt>. A user process and the processes it execs, and
+ * every kernel thread they create, normally form one group.
+ *
+ * <p>
+ * A new thread joins the group of the thread that created it. Threads that
+ * were never given a group belong to the scheduler's kernel group.
+ */
+public class SchedulingGroup {
+	/**
+	 * Allocate a new scheduling group. Its weight is read from
+	 * <tt>FairShareScheduler.weight.</tt><i>name</i>, or
+	 * <tt>FairShareScheduler.defaultWeight</tt> if that is not set.
+	 *
+	 * @param name the name of the group, usually the program it was made for.
+	 */
+	public SchedulingGroup(String name) {
+		this(name, Config.getInteger("FairShareScheduler.weight." + name,
+				Config.getInteger("FairShareScheduler.defaultWeight", 1)));
+	}
+
+	/**
+	 * Allocate a new scheduling group.
+	 *
+	 * @param name the name of the group.
+	 * @param weight the group's share of the CPU relative to other groups.
+	 */
+	public SchedulingGroup(String name, int weight) {
+		Lib.assertTrue(weight > 0);
+
+		this.name = name;
+		this.weight = weight;
+	}
+
+	/**
+	 * Return the name of this group.
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Return this group's weight.
+	 */
+	public int getWeight() {
+		return weight;
+	}
+
+	/**
+	 * Change this group's weight. Takes effect on the next scheduling
+	 * decision.
+	 *
+	 * @param weight the new weight. Must be positive.
+	 */
+	public void setWeight(int weight) {
+		Lib.assertTrue(weight > 0);
+
+		this.weight = weight;
+	}
+
+	/**
+	 * Return the number of ticks the threads of this group have run for.
+	 */
+	public long getUsage() {
+		return usage;
+	}
+
+	/**
+	 * Charge <i>ticks</i> of CPU time to this group. Interrupts must be
+	 * disabled.
+	 */
+	void charge(long ticks) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		usage += ticks;
+		// scaled so that small weights do not round the charge to nothing
+		virtualTime += ticks * virtualScale / weight;
+	}
+
+	public String toString() {
+		return "SchedulingGroup(" + name + ", weight " + weight + ")";
+	}
+
+	private static final long virtualScale = 1000;
+
+	private String name;
+
+	private int weight;
+
+	private long usage = 0;
+
+	/** Usage divided by weight; the group with the least runs next. */
+	long virtualTime = 0;
+}
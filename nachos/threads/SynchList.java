@@ -1,55 +1,180 @@
 package nachos.threads;
 
+import java.util.Collection;
 import java.util.LinkedList;
 import nachos.machine.*;
 import nachos.threads.*;
 
 /**
  * A synchronized queue.
+ *
+ * <p>
+ * Items are kept in an array used as a ring buffer. A queue may be given a
+ * capacity, in which case <tt>add()</tt> blocks while the queue is full, so
+ * producers get backpressure; otherwise the ring grows as needed.
  */
 public class SynchList {
 	/**
-	 * Allocate a new synchronized queue.
+	 * Allocate a new unbounded synchronized queue.
 	 */
 	public SynchList() {
-		list = new LinkedList<Object>();
+		this(0);
+	}
+
+	/**
+	 * Allocate a new synchronized queue holding at most <i>capacity</i>
+	 * objects.
+	 *
+	 * @param capacity the maximum number of queued objects, or 0 for an
+	 * unbounded queue.
+	 */
+	public SynchList(int capacity) {
+		Lib.assertTrue(capacity >= 0);
+
+		this.capacity = capacity;
+		items = new Object[capacity > 0 ? capacity : initialSize];
 		lock = new Lock();
-		listEmpty = new Condition(lock);
+		listEmpty = new Condition2(lock);
+		listFull = new Condition2(lock);
 	}
 
 	/**
-	 * Add the specified object to the end of the queue. If another thread is
-	 * waiting in <tt>removeFirst()</tt>, it is woken up.
-	 * 
+	 * Add the specified object to the end of the queue, blocking while the
+	 * queue is full. If another thread is waiting in <tt>removeFirst()</tt>,
+	 * it is woken up.
+	 *
 	 * @param o the object to add. Must not be <tt>null</tt>.
 	 */
 	public void add(Object o) {
 		Lib.assertTrue(o != null);
 
 		lock.acquire();
-		list.add(o);
+		while (isFull())
+			listFull.sleep();
+		enqueue(o);
 		listEmpty.wake();
 		lock.release();
 	}
 
+	/**
+	 * Add the specified object to the end of the queue if there is room for it,
+	 * without blocking.
+	 *
+	 * @param o the object to add. Must not be <tt>null</tt>.
+	 * @return <tt>true</tt> if the object was added, <tt>false</tt> if the
+	 * queue was full.
+	 */
+	public boolean offer(Object o) {
+		Lib.assertTrue(o != null);
+
+		lock.acquire();
+		boolean added = !isFull();
+		if (added) {
+			enqueue(o);
+			listEmpty.wake();
+		}
+		lock.release();
+
+		return added;
+	}
+
 	/**
 	 * Remove an object from the front of the queue, blocking until the queue is
 	 * non-empty if necessary.
-	 * 
+	 *
 	 * @return the element removed from the front of the queue.
 	 */
 	public Object removeFirst() {
 		Object o;
 
 		lock.acquire();
-		while (list.isEmpty())
+		while (size == 0)
 			listEmpty.sleep();
-		o = list.removeFirst();
+		o = dequeue();
+		listFull.wake();
 		lock.release();
 
 		return o;
 	}
 
+	/**
+	 * Remove an object from the front of the queue, waiting at most
+	 * <i>timeout</i> ticks for the queue to become non-empty. The wait is timed
+	 * by the alarm (see <tt>Condition2.sleepFor()</tt>).
+	 *
+	 * @param timeout the maximum number of ticks to wait.
+	 * @return the element removed from the front of the queue, or
+	 * <tt>null</tt> if the queue was still empty when the timeout elapsed.
+	 */
+	public Object removeFirst(long timeout) {
+		Object o = null;
+		long deadline = Machine.timer().getTime() + timeout;
+
+		lock.acquire();
+		while (size == 0) {
+			long remaining = deadline - Machine.timer().getTime();
+			if (remaining <= 0)
+				break;
+			listEmpty.sleepFor(remaining);
+		}
+		if (size > 0) {
+			o = dequeue();
+			listFull.wake();
+		}
+		lock.release();
+
+		return o;
+	}
+
+	/**
+	 * Remove up to <i>max</i> objects from the front of the queue and add them,
+	 * in order, to <i>c</i>, all under a single acquisition of the queue's
+	 * lock. Does not block.
+	 *
+	 * @param c the collection to add the removed objects to.
+	 * @param max the maximum number of objects to remove.
+	 * @return the number of objects removed.
+	 */
+	public int drainTo(Collection<Object> c, int max) {
+		int n = 0;
+
+		lock.acquire();
+		while (size > 0 && n < max) {
+			c.add(dequeue());
+			n++;
+		}
+		if (n > 0)
+			listFull.wakeAll();
+		lock.release();
+
+		return n;
+	}
+
+	private boolean isFull() {
+		return capacity > 0 && size == capacity;
+	}
+
+	private void enqueue(Object o) {
+		if (size == items.length) {
+			// only unbounded queues grow, bounded ones block before this
+			Object[] grown = new Object[items.length * 2];
+			for (int i = 0; i < size; i++)
+				grown[i] = items[(head + i) % items.length];
+			items = grown;
+			head = 0;
+		}
+		items[(head + size) % items.length] = o;
+		size++;
+	}
+
+	private Object dequeue() {
+		Object o = items[head];
+		items[head] = null;
+		head = (head + 1) % items.length;
+		size--;
+		return o;
+	}
+
 	private static class PingTest implements Runnable {
 		PingTest(SynchList ping, SynchList pong) {
 			this.ping = ping;
@@ -80,11 +205,47 @@ public class SynchList {
 			ping.add(o);
 			Lib.assertTrue(pong.removeFirst() == o);
 		}
+
+		// a bounded queue makes the producer wait for the consumer
+		final SynchList bounded = new SynchList(4);
+		KThread producer = new KThread(new Runnable() {
+			public void run() {
+				for (int i = 0; i < 20; i++)
+					bounded.add(Integer.valueOf(i));
+			}
+		}).setName("producer");
+		producer.fork();
+
+		LinkedList<Object> drained = new LinkedList<Object>();
+		int expected = 0;
+		while (expected < 20) {
+			Object first = bounded.removeFirst();
+			Lib.assertTrue(((Integer) first).intValue() == expected++);
+			drained.clear();
+			bounded.drainTo(drained, 8);
+			Lib.assertTrue(drained.size() <= 4);
+			for (Object o : drained)
+				Lib.assertTrue(((Integer) o).intValue() == expected++);
+		}
+		producer.join();
+
+		// nobody adds anything, so a timed remove gives up
+		long t0 = Machine.timer().getTime();
+		Lib.assertTrue(bounded.removeFirst(1000) == null);
+		Lib.assertTrue(Machine.timer().getTime() - t0 >= 1000);
 	}
 
-	private LinkedList<Object> list;
+	private static final int initialSize = 16;
+
+	private Object[] items;
+
+	private int head = 0, size = 0;
+
+	private int capacity;
 
 	private Lock lock;
 
-	private Condition listEmpty;
+	private Condition2 listEmpty;
+
+	private Condition2 listFull;
 }
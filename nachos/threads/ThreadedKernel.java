@@ -14,8 +14,8 @@ public class ThreadedKernel extends Kernel {
 	}
 
 	/**
-	 * Initialize this kernel. Creates a scheduler, the first thread, and an
-	 * alarm, and enables interrupts. Creates a file system if necessary.
+	 * Initialize this kernel. Creates a scheduler, the first thread, an alarm
+	 * and the deferred-work queue, and enables interrupts. Creates a file system if necessary.
 	 */
 	public void initialize(String[] args) {
 		// set scheduler
@@ -36,6 +36,10 @@ public class ThreadedKernel extends Kernel {
 
 		alarm = new Alarm();
 
+		workQueue = new WorkQueue("kernel", Config.getInteger(
+				"ThreadedKernel.workers", 1), Config.getInteger(
+				"ThreadedKernel.workBatchSize", 8));
+
 		Machine.interrupt().enable();
 	}
 
@@ -76,6 +80,9 @@ public class ThreadedKernel extends Kernel {
 	/** Globally accessible reference to the alarm. */
 	public static Alarm alarm = null;
 
+	/** Globally accessible reference to the kernel's deferred-work queue. */
+	public static WorkQueue workQueue = null;
+
 	/** Globally accessible reference to the file system. */
 	public static FileSystem fileSystem = null;
 
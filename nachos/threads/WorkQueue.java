@@ -0,0 +1,199 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+
+/**
+ * A queue of deferred kernel work run by a pool of worker threads. Callers
+ * <tt>submit()</tt> a <tt>Runnable</tt> and return at once; a worker runs it
+ * later. Work can be given one of three priorities, and higher-priority work
+ * is always taken first.
+ *
+ * <p>
+ * A worker takes up to a batch of items per acquisition of the queue's lock,
+ * so a burst of small items (closing a process's files, say) costs one lock
+ * round-trip rather than one per item. Items in one batch run in submission
+ * order, but items taken by different workers may run in any order.
+ *
+ * <p>
+ * <tt>flush()</tt> waits until every submitted item has run. A queue with no
+ * workers runs each item inside <tt>submit()</tt>.
+ */
+public class WorkQueue {
+	/** Priority for work that someone may soon be waiting for. */
+	public static final int priorityHigh = 0;
+
+	/** Priority for ordinary deferred work. */
+	public static final int priorityNormal = 1;
+
+	/** Priority for work that only matters when nothing else is queued. */
+	public static final int priorityLow = 2;
+
+	/**
+	 * Allocate a new work queue and fork its workers.
+	 *
+	 * @param name the name of the queue, used to name the workers.
+	 * @param numWorkers the number of worker threads.
+	 * @param batchSize the largest number of items a worker takes at once.
+	 */
+	public WorkQueue(String name, int numWorkers, int batchSize) {
+		Lib.assertTrue(numWorkers >= 0 && batchSize > 0);
+
+		this.numWorkers = numWorkers;
+		this.batchSize = batchSize;
+
+		for (int i = 0; i <= priorityLow; i++)
+			queues.add(new LinkedList<Runnable>());
+
+		for (int i = 0; i < numWorkers; i++) {
+			new KThread(new Runnable() {
+				public void run() {
+					work();
+				}
+			}).setName(name + " worker " + i).fork();
+		}
+	}
+
+	/**
+	 * Queue <i>work</i> with normal priority.
+	 *
+	 * @param work the work to run.
+	 */
+	public void submit(Runnable work) {
+		submit(work, priorityNormal);
+	}
+
+	/**
+	 * Queue <i>work</i> with the given priority.
+	 *
+	 * @param work the work to run.
+	 * @param priority one of <tt>priorityHigh</tt>, <tt>priorityNormal</tt>
+	 * and <tt>priorityLow</tt>.
+	 */
+	public void submit(Runnable work, int priority) {
+		Lib.assertTrue(priority >= priorityHigh && priority <= priorityLow);
+
+		if (numWorkers == 0) {
+			work.run();
+			return;
+		}
+
+		lock.acquire();
+		queues.get(priority).add(work);
+		pending++;
+		workAvailable.wake();
+		lock.release();
+	}
+
+	/**
+	 * Wait until every item submitted so far, and any submitted meanwhile, has
+	 * run.
+	 */
+	public void flush() {
+		lock.acquire();
+		while (pending > 0)
+			allDone.sleep();
+		lock.release();
+	}
+
+	/**
+	 * The body of a worker: take a batch from the highest-priority non-empty
+	 * queue and run it without holding the lock.
+	 */
+	private void work() {
+		Runnable[] batch = new Runnable[batchSize];
+
+		while (true) {
+			lock.acquire();
+			int count;
+			while ((count = takeBatch(batch)) == 0)
+				workAvailable.sleep();
+			lock.release();
+
+			for (int i = 0; i < count; i++) {
+				batch[i].run();
+				batch[i] = null;
+			}
+
+			lock.acquire();
+			pending -= count;
+			if (pending == 0)
+				allDone.wakeAll();
+			lock.release();
+		}
+	}
+
+	private int takeBatch(Runnable[] batch) {
+		for (LinkedList<Runnable> queue : queues) {
+			if (queue.isEmpty())
+				continue;
+
+			int count = 0;
+			while (count < batch.length && !queue.isEmpty())
+				batch[count++] = queue.removeFirst();
+			return count;
+		}
+		return 0;
+	}
+
+	/**
+	 * Test that this module is working.
+	 */
+	public static void selfTest() {
+		WorkQueue queue = new WorkQueue("test", 2, 4);
+		final int[] done = new int[3];
+
+		for (int i = 0; i < 20; i++) {
+			final int priority = i % 3;
+			queue.submit(new Runnable() {
+				public void run() {
+					done[priority]++;
+					KThread.yield();
+				}
+			}, priority);
+		}
+
+		queue.flush();
+		Lib.assertTrue(done[0] == 7 && done[1] == 7 && done[2] == 6);
+
+		// high-priority work queued behind low-priority work is taken first
+		final LinkedList<Integer> order = new LinkedList<Integer>();
+		WorkQueue serial = new WorkQueue("serial", 1, 1);
+		final Semaphore gate = new Semaphore(0);
+		serial.submit(new Runnable() {
+			public void run() {
+				gate.P();
+			}
+		});
+		KThread.yield(); // let the worker block in the first item
+		for (int priority = priorityLow; priority >= priorityHigh; priority--) {
+			final int p = priority;
+			serial.submit(new Runnable() {
+				public void run() {
+					order.add(p);
+				}
+			}, priority);
+		}
+		gate.V();
+		serial.flush();
+		Lib.assertTrue(order.get(0) == priorityHigh
+				&& order.get(2) == priorityLow);
+	}
+
+	private int numWorkers;
+
+	private int batchSize;
+
+	private ArrayList<LinkedList<Runnable>> queues = new ArrayList<LinkedList<Runnable>>();
+
+	/** Items submitted but not yet finished. */
+	private int pending = 0;
+
+	private Lock lock = new Lock();
+
+	private Condition2 workAvailable = new Condition2(lock);
+
+	private Condition2 allDone = new Condition2(lock);
+}
@@ -0,0 +1,242 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+
+/**
+ * The open files of a user process, indexed by file descriptor.
+ *
+ * <p>
+ * The table starts small and doubles when a descriptor past its end is
+ * needed, up to a per-process limit read from
+ * <tt>FileDescriptorTable.limit</tt>. New descriptors are always the lowest
+ * free ones. They are found in constant time through a two-level bitmap: one
+ * bit per descriptor that is set while the descriptor is in use, and one
+ * summary bit per 64 descriptors that is set while all of them are.
+ *
+ * <p>
+ * <tt>dup()</tt> and <tt>dup2()</tt> make several descriptors refer to the same
+ * <tt>OpenFile</tt>, sharing its file position. The file is only closed when
+ * its last descriptor is.
+ */
+public class FileDescriptorTable {
+	/**
+	 * Allocate a new, empty table with the configured limit.
+	 */
+	public FileDescriptorTable() {
+		this(Config.getInteger("FileDescriptorTable.limit", 256));
+	}
+
+	/**
+	 * Allocate a new, empty table.
+	 *
+	 * @param limit the largest number of descriptors this table will hold.
+	 */
+	public FileDescriptorTable(int limit) {
+		Lib.assertTrue(limit > 0 && limit <= maxLimit);
+
+		this.limit = limit;
+		files = new OpenFile[Math.min(initialSize, limit)];
+		used = new long[(limit + 63) / 64];
+	}
+
+	/**
+	 * Return the file open at <i>fd</i>, or <tt>null</tt> if <i>fd</i> is not
+	 * an open descriptor.
+	 */
+	public OpenFile get(int fd) {
+		if (fd < 0 || fd >= files.length)
+			return null;
+		return files[fd];
+	}
+
+	/**
+	 * Return one more than the highest descriptor that may be open. Loops over
+	 * the table run from 0 to this bound.
+	 */
+	public int size() {
+		return files.length;
+	}
+
+	/**
+	 * Give <i>file</i> the lowest free descriptor.
+	 *
+	 * @return the new descriptor, or -1 if the table is at its limit.
+	 */
+	public int add(OpenFile file) {
+		Lib.assertTrue(file != null);
+
+		int fd = lowestFree();
+		if (fd < 0)
+			return -1;
+		install(fd, file);
+		return fd;
+	}
+
+	/**
+	 * Make the lowest free descriptor refer to the same file as <i>fd</i>.
+	 *
+	 * @return the new descriptor, or -1 if <i>fd</i> is not open or the table
+	 * is at its limit.
+	 */
+	public int dup(int fd) {
+		OpenFile file = get(fd);
+		if (file == null)
+			return -1;
+		return add(file);
+	}
+
+	/**
+	 * Make <i>newFd</i> refer to the same file as <i>fd</i>, closing whatever
+	 * <i>newFd</i> referred to before. Does nothing if they are the same.
+	 *
+	 * @return <i>newFd</i>, or -1 if <i>fd</i> is not open or <i>newFd</i> is
+	 * out of range.
+	 */
+	public int dup2(int fd, int newFd) {
+		OpenFile file = get(fd);
+		if (file == null || newFd < 0 || newFd >= limit)
+			return -1;
+		if (fd == newFd)
+			return newFd;
+
+		close(newFd);
+		install(newFd, file);
+		return newFd;
+	}
+
+	/**
+	 * Make <i>fd</i> refer to <i>file</i>, closing whatever it referred to
+	 * before.
+	 *
+	 * @return <i>fd</i>, or -1 if it is out of range.
+	 */
+	public int set(int fd, OpenFile file) {
+		Lib.assertTrue(file != null);
+
+		if (fd < 0 || fd >= limit)
+			return -1;
+		close(fd);
+		install(fd, file);
+		return fd;
+	}
+
+	/**
+	 * Free descriptor <i>fd</i> and close its file if no other descriptor
+	 * refers to it.
+	 *
+	 * @return <tt>true</tt> if <i>fd</i> was open.
+	 */
+	public boolean close(int fd) {
+		if (get(fd) == null)
+			return false;
+
+		OpenFile file = release(fd);
+		if (file != null)
+			file.close();
+		return true;
+	}
+
+	/**
+	 * Free descriptor <i>fd</i> without closing anything.
+	 *
+	 * @return the file, if <i>fd</i> was its last descriptor and the caller
+	 * should close it, or <tt>null</tt>.
+	 */
+	public OpenFile release(int fd) {
+		OpenFile file = get(fd);
+		if (file == null)
+			return null;
+
+		files[fd] = null;
+		used[fd / 64] &= ~(1L << (fd % 64));
+		full &= ~(1L << (fd / 64));
+
+		int count = refCounts.get(file) - 1;
+		if (count > 0) {
+			refCounts.put(file, count);
+			return null;
+		}
+		refCounts.remove(file);
+		return file;
+	}
+
+	/**
+	 * Return the lowest free descriptor, or -1 if there is none below the
+	 * limit.
+	 */
+	private int lowestFree() {
+		int word = Long.numberOfTrailingZeros(~full);
+		if (word >= used.length)
+			return -1;
+		int fd = word * 64 + Long.numberOfTrailingZeros(~used[word]);
+		return fd < limit ? fd : -1;
+	}
+
+	private void install(int fd, OpenFile file) {
+		if (fd >= files.length) {
+			int size = files.length;
+			while (size <= fd)
+				size *= 2;
+			files = Arrays.copyOf(files, Math.min(size, limit));
+		}
+
+		files[fd] = file;
+		used[fd / 64] |= 1L << (fd % 64);
+		if (used[fd / 64] == -1L)
+			full |= 1L << (fd / 64);
+
+		Integer count = refCounts.get(file);
+		refCounts.put(file, count == null ? 1 : count + 1);
+	}
+
+	/**
+	 * Test that this module is working.
+	 */
+	public static void selfTest() {
+		FileDescriptorTable table = new FileDescriptorTable(200);
+		OpenFile[] opened = new OpenFile[200];
+		for (int i = 0; i < 200; i++) {
+			opened[i] = new OpenFile();
+			Lib.assertTrue(table.add(opened[i]) == i);
+		}
+		Lib.assertTrue(table.size() == 200);
+		Lib.assertTrue(table.add(new OpenFile()) == -1);
+
+		// the lowest free descriptor is reused first
+		table.close(130);
+		table.close(7);
+		Lib.assertTrue(table.add(opened[7]) == 7);
+		Lib.assertTrue(table.dup(3) == 130);
+		Lib.assertTrue(table.get(130) == opened[3]);
+
+		// a shared file survives until its last descriptor is closed
+		Lib.assertTrue(table.release(3) == null);
+		Lib.assertTrue(table.release(130) == opened[3]);
+
+		Lib.assertTrue(table.dup2(5, 9) == 9 && table.get(9) == opened[5]);
+		Lib.assertTrue(table.dup2(5, 200) == -1);
+		Lib.assertTrue(table.dup(5) == 3);
+		Lib.assertTrue(!table.close(250));
+	}
+
+	/** Limit supported by a single summary word. */
+	private static final int maxLimit = 64 * 64;
+
+	private static final int initialSize = 16;
+
+	private int limit;
+
+	private OpenFile[] files;
+
+	/** Bit <i>fd</i> is set while <i>fd</i> is in use. */
+	private long[] used;
+
+	/** Bit <i>i</i> is set while all of <tt>used[i]</tt> is in use. */
+	private long full = 0;
+
+	/** Number of descriptors referring to each open file. */
+	private IdentityHashMap<OpenFile, Integer> refCounts = new IdentityHashMap<OpenFile, Integer>();
+}
@@ -0,0 +1,321 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+
+/**
+ * Keeps track of which physical frames are free.
+ *
+ * <p>
+ * Frames are kept in a bitmap with one bit per frame that is set while the
+ * frame is free, and one summary bit per 64 frames that is set while any of
+ * them is. Single frames are found through the summary in a few word
+ * operations, runs of contiguous frames by skipping whole words that are
+ * entirely free or entirely in use, and a batch of frames is taken or
+ * returned a word at a time, so a whole address space costs roughly one
+ * operation per 64 frames.
+ *
+ * <p>
+ * An allocator does no locking of its own. The kernel's allocator is guarded
+ * by <tt>UserKernel.pagesAvailableMutex</tt>.
+ */
+public class FrameAllocator {
+	/**
+	 * Allocate a new allocator with every frame free.
+	 *
+	 * @param numFrames the number of frames to keep track of.
+	 */
+	public FrameAllocator(int numFrames) {
+		this(numFrames, true);
+	}
+
+	/**
+	 * Allocate a new allocator.
+	 *
+	 * @param numFrames the number of frames to keep track of.
+	 * @param free whether the frames start out free, or in use.
+	 */
+	public FrameAllocator(int numFrames, boolean free) {
+		Lib.assertTrue(numFrames >= 0);
+
+		this.numFrames = numFrames;
+		words = new long[(numFrames + 63) / 64];
+		summary = new long[(words.length + 63) / 64];
+		if (free)
+			setRange(0, numFrames, true);
+	}
+
+	/**
+	 * Return the number of frames this allocator keeps track of.
+	 */
+	public int getNumFrames() {
+		return numFrames;
+	}
+
+	/**
+	 * Return the number of free frames.
+	 */
+	public int numFree() {
+		return numFree;
+	}
+
+	/**
+	 * Return true if <i>frame</i> is free.
+	 */
+	public boolean isFree(int frame) {
+		Lib.assertTrue(frame >= 0 && frame < numFrames);
+		return (words[frame / 64] & (1L << (frame % 64))) != 0;
+	}
+
+	/**
+	 * Take the lowest free frame.
+	 *
+	 * @return the frame, or -1 if there are no free frames.
+	 */
+	public int allocate() {
+		int word = firstFreeWord();
+		if (word < 0)
+			return -1;
+
+		int frame = word * 64 + Long.numberOfTrailingZeros(words[word]);
+		clear(frame);
+		return frame;
+	}
+
+	/**
+	 * Take <i>count</i> free frames, or none if there are not that many.
+	 *
+	 * @param frames the array to store the frames in.
+	 * @param count the number of frames to take.
+	 * @return <tt>true</tt> if the frames were taken.
+	 */
+	public boolean allocate(int[] frames, int count) {
+		Lib.assertTrue(count >= 0 && count <= frames.length);
+
+		if (count > numFree)
+			return false;
+
+		int taken = 0;
+		while (taken < count) {
+			int word = firstFreeWord();
+			long bits = words[word];
+			// take the whole word when it is all needed
+			while (bits != 0 && taken < count) {
+				frames[taken++] = word * 64 + Long.numberOfTrailingZeros(bits);
+				bits &= bits - 1;
+			}
+			numFree -= Long.bitCount(words[word]) - Long.bitCount(bits);
+			words[word] = bits;
+			if (bits == 0)
+				summary[word / 64] &= ~(1L << (word % 64));
+		}
+		return true;
+	}
+
+	/**
+	 * Take <i>count</i> free frames with consecutive numbers, the lowest such
+	 * run there is.
+	 *
+	 * @return the first frame of the run, or -1 if there is no such run.
+	 */
+	public int allocateContiguous(int count) {
+		Lib.assertTrue(count > 0);
+
+		if (count > numFree)
+			return -1;
+
+		int start = 0, run = 0;
+		for (int word = firstWord; word < words.length && run < count; word++) {
+			long bits = words[word];
+			if (bits == -1L) {
+				if (run == 0)
+					start = word * 64;
+				run += 64;
+			} else if (bits == 0) {
+				run = 0;
+			} else {
+				for (int bit = 0; bit < 64 && run < count; bit++) {
+					if ((bits & (1L << bit)) != 0) {
+						if (run == 0)
+							start = word * 64 + bit;
+						run++;
+					} else {
+						run = 0;
+					}
+				}
+			}
+		}
+		if (run < count)
+			return -1;
+
+		setRange(start, count, false);
+		return start;
+	}
+
+	/**
+	 * Return <i>frame</i> to the allocator.
+	 */
+	public void free(int frame) {
+		Lib.assertTrue(!isFree(frame));
+		set(frame);
+	}
+
+	/**
+	 * Return the first <i>count</i> frames in <i>frames</i> to the allocator.
+	 * Consecutive frames that fall in the same word, as those of an address
+	 * space taken with one batch do, are returned with one update.
+	 */
+	public void free(int[] frames, int count) {
+		Lib.assertTrue(count >= 0 && count <= frames.length);
+
+		int i = 0;
+		while (i < count) {
+			int word = frames[i] / 64;
+			long bits = 0;
+			for (; i < count && frames[i] / 64 == word; i++) {
+				Lib.assertTrue(frames[i] >= 0 && frames[i] < numFrames);
+				long bit = 1L << (frames[i] % 64);
+				Lib.assertTrue((words[word] & bit) == 0 && (bits & bit) == 0);
+				bits |= bit;
+			}
+			words[word] |= bits;
+			summary[word / 64] |= 1L << (word % 64);
+			firstWord = Math.min(firstWord, word);
+			numFree += Long.bitCount(bits);
+		}
+	}
+
+	/**
+	 * Return the run of <i>count</i> frames starting at <i>first</i> to the
+	 * allocator.
+	 */
+	public void freeContiguous(int first, int count) {
+		Lib.assertTrue(first >= 0 && count >= 0 && first + count <= numFrames);
+
+		for (int frame = first; frame < first + count; frame++)
+			Lib.assertTrue(!isFree(frame));
+		setRange(first, count, true);
+	}
+
+	/**
+	 * Return the index of the first word with a free frame in it, or -1 if
+	 * there is none.
+	 */
+	private int firstFreeWord() {
+		for (int i = firstWord / 64; i < summary.length; i++) {
+			if (summary[i] != 0) {
+				firstWord = i * 64 + Long.numberOfTrailingZeros(summary[i]);
+				return firstWord;
+			}
+		}
+		firstWord = words.length;
+		return -1;
+	}
+
+	private void set(int frame) {
+		int word = frame / 64;
+		words[word] |= 1L << (frame % 64);
+		summary[word / 64] |= 1L << (word % 64);
+		firstWord = Math.min(firstWord, word);
+		numFree++;
+	}
+
+	private void clear(int frame) {
+		int word = frame / 64;
+		words[word] &= ~(1L << (frame % 64));
+		if (words[word] == 0)
+			summary[word / 64] &= ~(1L << (word % 64));
+		numFree--;
+	}
+
+	/**
+	 * Mark the run of <i>count</i> frames starting at <i>first</i> free or in
+	 * use, a word at a time. The frames must all be in the other state.
+	 */
+	private void setRange(int first, int count, boolean free) {
+		int end = first + count;
+		for (int frame = first; frame < end;) {
+			int word = frame / 64;
+			int bits = Math.min(64 - frame % 64, end - frame);
+			long mask = (bits == 64 ? -1L : (1L << bits) - 1) << (frame % 64);
+			if (free) {
+				words[word] |= mask;
+				summary[word / 64] |= 1L << (word % 64);
+			} else {
+				words[word] &= ~mask;
+				if (words[word] == 0)
+					summary[word / 64] &= ~(1L << (word % 64));
+			}
+			frame += bits;
+		}
+		if (free) {
+			if (count > 0)
+				firstWord = Math.min(firstWord, first / 64);
+			numFree += count;
+		} else {
+			numFree -= count;
+		}
+	}
+
+	/**
+	 * Test that this module is working.
+	 */
+	public static void selfTest() {
+		FrameAllocator frames = new FrameAllocator(200);
+		Lib.assertTrue(frames.numFree() == 200);
+		Lib.assertTrue(frames.allocate() == 0 && frames.allocate() == 1);
+
+		// a batch takes the lowest frames and can span words
+		int[] batch = new int[100];
+		Lib.assertTrue(frames.allocate(batch, 100));
+		Lib.assertTrue(batch[0] == 2 && batch[99] == 101);
+		Lib.assertTrue(!frames.allocate(new int[100], 100));
+		Lib.assertTrue(frames.numFree() == 98);
+
+		// freed frames are reused lowest first
+		frames.free(1);
+		frames.free(batch, 10);
+		Lib.assertTrue(frames.numFree() == 109);
+		Lib.assertTrue(frames.allocate() == 1);
+
+		// a contiguous run skips holes too small for it
+		Lib.assertTrue(frames.allocateContiguous(20) == 102);
+		Lib.assertTrue(frames.allocateContiguous(10) == 2);
+		Lib.assertTrue(frames.allocateContiguous(100) == -1);
+		frames.freeContiguous(102, 20);
+		Lib.assertTrue(frames.allocateContiguous(98) == 102);
+		Lib.assertTrue(frames.numFree() == 0 && frames.allocate() == -1);
+
+		// a large allocator is set up and emptied a word at a time
+		FrameAllocator large = new FrameAllocator(1 << 22);
+		Lib.assertTrue(large.allocateContiguous((1 << 22) - 1) == 0);
+		Lib.assertTrue(large.allocate() == (1 << 22) - 1);
+		large.freeContiguous(4096, 64);
+		Lib.assertTrue(large.allocate() == 4096);
+
+		// a batch out of order is returned word by word
+		FrameAllocator mixed = new FrameAllocator(200, false);
+		int[] scattered = { 150, 3, 151, 149, 2 };
+		mixed.free(scattered, 5);
+		Lib.assertTrue(mixed.numFree() == 5);
+		Lib.assertTrue(mixed.allocate(scattered, 5) && scattered[0] == 2
+				&& scattered[2] == 149 && scattered[4] == 151);
+
+		FrameAllocator empty = new FrameAllocator(10, false);
+		Lib.assertTrue(empty.allocate() == -1);
+		empty.free(7);
+		Lib.assertTrue(empty.isFree(7) && empty.allocate() == 7);
+	}
+
+	private int numFrames;
+
+	private int numFree = 0;
+
+	/** Bit <i>i</i> is set while frame <i>i</i> is free. */
+	private long[] words;
+
+	/** Bit <i>i</i> is set while any frame of <tt>words[i]</tt> is free. */
+	private long[] summary;
+
+	/** No word before this one has a free frame. */
+	private int firstWord = 0;
+}
@@ -0,0 +1,175 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.io.EOFException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * A kernel-wide cache of executables. The first <tt>open()</tt> of a program
+ * reads the whole file into memory with one read and parses its headers;
+ * later ones just hand out another view of the parsed image, so starting a
+ * program that is already cached costs no disk access at all.
+ *
+ * <p>
+ * Images are kept in least-recently-used order, and the oldest are dropped
+ * once the cached bytes exceed <tt>ImageCache.capacity</tt>. The kernel calls
+ * <tt>invalidate()</tt> whenever a file may have been rewritten or removed,
+ * so the next <tt>open()</tt> reads it again.
+ */
+public class ImageCache {
+	/**
+	 * Allocate a new, empty cache with the configured capacity.
+	 */
+	public ImageCache() {
+		this(Config.getInteger("ImageCache.capacity", 256 * 1024));
+	}
+
+	/**
+	 * Allocate a new, empty cache.
+	 *
+	 * @param capacity the most bytes of executables to keep.
+	 */
+	public ImageCache(int capacity) {
+		Lib.assertTrue(capacity >= 0);
+
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Return a <tt>Coff</tt> for the named executable, from the cache if
+	 * possible. Each call returns a separate object, which the caller may
+	 * close without affecting anyone else.
+	 *
+	 * @param name the name of the executable.
+	 * @return the executable, or <tt>null</tt> if it cannot be opened or is
+	 * not a valid COFF file.
+	 */
+	public Coff open(String name) {
+		lock.acquire();
+		Image image = images.get(name);
+		if (image != null) {
+			hits++;
+		} else {
+			misses++;
+			image = load(name);
+			if (image != null && image.bytes.length <= capacity) {
+				images.put(name, image);
+				size += image.bytes.length;
+				trim();
+			}
+		}
+		lock.release();
+
+		return image == null ? null : new View(image.coff);
+	}
+
+	/**
+	 * Forget the named file, if it is cached. Processes already running it
+	 * keep their view of the old contents.
+	 *
+	 * @param name the name of a file that has changed.
+	 */
+	public void invalidate(String name) {
+		lock.acquire();
+		Image image = images.remove(name);
+		if (image != null)
+			size -= image.bytes.length;
+		lock.release();
+	}
+
+	/**
+	 * Print the cache's hit and miss counts.
+	 */
+	public void print() {
+		System.out.println("Image cache: hits " + hits + ", misses " + misses
+				+ ", " + images.size() + " images, " + size + " bytes");
+	}
+
+	/**
+	 * Read and parse the named executable.
+	 */
+	private Image load(String name) {
+		OpenFile file = ThreadedKernel.fileSystem.open(name, false);
+		if (file == null)
+			return null;
+
+		int length = file.length();
+		byte[] bytes = new byte[Math.max(length, 0)];
+		int read = file.read(0, bytes, 0, bytes.length);
+		file.close();
+		if (length < 0 || read != length)
+			return null;
+
+		try {
+			return new Image(bytes, new Coff(new ArrayFile(bytes)));
+		}
+		catch (EOFException e) {
+			Lib.debug(dbgCache, "\t" + name + " is not a valid executable");
+			return null;
+		}
+	}
+
+	/**
+	 * Drop the least recently used images until the cache fits.
+	 */
+	private void trim() {
+		Iterator<Image> i = images.values().iterator();
+		while (size > capacity && i.hasNext()) {
+			size -= i.next().bytes.length;
+			i.remove();
+		}
+	}
+
+	/** A cached executable: its bytes and the COFF parsed from them. */
+	private static class Image {
+		Image(byte[] bytes, Coff coff) {
+			this.bytes = bytes;
+			this.coff = coff;
+		}
+
+		byte[] bytes;
+
+		Coff coff;
+	}
+
+	/**
+	 * One process's view of a cached COFF. It shares the sections, which read
+	 * from the in-memory image, and closing it leaves them alone.
+	 */
+	private static class View extends Coff {
+		View(Coff image) {
+			entryPoint = image.getEntryPoint();
+			sections = new CoffSection[image.getNumSections()];
+			for (int s = 0; s < sections.length; s++)
+				sections[s] = image.getSection(s);
+		}
+
+		public int getEntryPoint() {
+			Lib.assertTrue(sections != null);
+
+			return entryPoint;
+		}
+
+		public void close() {
+			sections = null;
+		}
+	}
+
+	private int capacity;
+
+	/** Bytes held by all cached images. */
+	private int size = 0;
+
+	private int hits = 0, misses = 0;
+
+	/** Cached images, least recently used first. */
+	private LinkedHashMap<String, Image> images = new LinkedHashMap<String, Image>(
+			16, 0.75f, true);
+
+	private Lock lock = new Lock();
+
+	private static final char dbgCache = 'c';
+}
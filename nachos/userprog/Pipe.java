@@ -0,0 +1,241 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+/**
+ * A one-way byte stream between processes, kept in a fixed-size kernel ring
+ * buffer. <tt>openForReading()</tt> and <tt>openForWriting()</tt> return the
+ * two ends as <tt>OpenFile</tt>s, so a pipe can sit in a file descriptor
+ * table next to disk files and the console.
+ *
+ * <p>
+ * A read blocks while the pipe is empty and returns whatever is there, up to
+ * the amount asked for; it returns 0 once the pipe is empty and every write
+ * end is closed. A write blocks until all of its data fits, so a write of no
+ * more than the capacity is never interleaved with another. Longer writes go
+ * in pieces as readers make room. Writing with no read end open fails.
+ *
+ * <p>
+ * The capacity is read from <tt>Pipe.capacity</tt>.
+ */
+public class Pipe {
+	/**
+	 * Allocate a new pipe with the configured capacity and no ends open.
+	 */
+	public Pipe() {
+		this(defaultCapacity);
+	}
+
+	/**
+	 * Allocate a new pipe with no ends open.
+	 *
+	 * @param capacity the number of bytes the pipe can hold.
+	 */
+	public Pipe(int capacity) {
+		Lib.assertTrue(capacity > 0);
+
+		buffer = new byte[capacity];
+	}
+
+	/**
+	 * Open a new read end of this pipe.
+	 *
+	 * @return a file that reads from this pipe.
+	 */
+	public OpenFile openForReading() {
+		lock.acquire();
+		readers++;
+		lock.release();
+		return new End(true);
+	}
+
+	/**
+	 * Open a new write end of this pipe.
+	 *
+	 * @return a file that writes to this pipe.
+	 */
+	public OpenFile openForWriting() {
+		lock.acquire();
+		writers++;
+		lock.release();
+		return new End(false);
+	}
+
+	/**
+	 * Return true if <i>file</i> is an end of a pipe.
+	 */
+	public static boolean isEnd(OpenFile file) {
+		return file instanceof End;
+	}
+
+	/**
+	 * If <i>file</i> is an end of a pipe, open another end of the same kind on
+	 * the same pipe, so that a new process can be handed the end without
+	 * sharing its <tt>OpenFile</tt>.
+	 *
+	 * @return the new end, or <tt>null</tt> if <i>file</i> is not a pipe end.
+	 */
+	public static OpenFile reopen(OpenFile file) {
+		if (!(file instanceof End))
+			return null;
+
+		End end = (End) file;
+		return end.isReader ? end.pipe().openForReading() : end.pipe()
+				.openForWriting();
+	}
+
+	private int read(byte[] buf, int offset, int length) {
+		lock.acquire();
+		while (count == 0 && writers > 0)
+			dataAvailable.sleep();
+
+		int amount = Math.min(length, count);
+		for (int i = 0; i < amount; i++) {
+			buf[offset + i] = buffer[head];
+			head = (head + 1) % buffer.length;
+		}
+		count -= amount;
+		if (amount > 0)
+			spaceAvailable.wakeAll();
+		lock.release();
+		return amount;
+	}
+
+	private int write(byte[] buf, int offset, int length) {
+		lock.acquire();
+		int written = 0;
+		while (written < length) {
+			// wait for room for the whole write, or the rest of a long one
+			int needed = Math.min(length - written, buffer.length);
+			while (buffer.length - count < needed && readers > 0)
+				spaceAvailable.sleep();
+			if (readers == 0)
+				break;
+
+			int amount = Math.min(length - written, buffer.length - count);
+			int tail = (head + count) % buffer.length;
+			for (int i = 0; i < amount; i++) {
+				buffer[tail] = buf[offset + written + i];
+				tail = (tail + 1) % buffer.length;
+			}
+			count += amount;
+			written += amount;
+			dataAvailable.wakeAll();
+		}
+		lock.release();
+		return written > 0 ? written : (length == 0 ? 0 : -1);
+	}
+
+	private void close(boolean reader) {
+		lock.acquire();
+		if (reader)
+			readers--;
+		else
+			writers--;
+		// wake everyone so they see the end has gone
+		dataAvailable.wakeAll();
+		spaceAvailable.wakeAll();
+		lock.release();
+	}
+
+	/**
+	 * Test that this module is working.
+	 */
+	public static void selfTest() {
+		final Pipe pipe = new Pipe(16);
+		final OpenFile in = pipe.openForReading();
+		final OpenFile out = pipe.openForWriting();
+
+		// two writers, each writing whole capacity-sized records
+		KThread[] writers = new KThread[2];
+		for (int w = 0; w < writers.length; w++) {
+			final byte mark = (byte) ('a' + w);
+			final OpenFile end = pipe.openForWriting();
+			writers[w] = new KThread(new Runnable() {
+				public void run() {
+					byte[] record = new byte[16];
+					java.util.Arrays.fill(record, mark);
+					for (int i = 0; i < 4; i++) {
+						Lib.assertTrue(end.write(record, 0, 16) == 16);
+						KThread.yield();
+					}
+					end.close();
+				}
+			}).setName("pipe writer " + w);
+			writers[w].fork();
+		}
+		out.close();
+
+		byte[] data = new byte[16];
+		int total = 0, n;
+		while ((n = in.read(data, 0, 16)) > 0) {
+			// a record is never split by another writer
+			Lib.assertTrue(n == 16);
+			for (int i = 1; i < n; i++)
+				Lib.assertTrue(data[i] == data[0]);
+			total += n;
+		}
+		Lib.assertTrue(total == 128);
+		in.close();
+
+		// writing with no reader fails
+		OpenFile orphan = pipe.openForWriting();
+		Lib.assertTrue(orphan.write(data, 0, 1) == -1);
+		orphan.close();
+	}
+
+	/** One end of the pipe. */
+	private class End extends OpenFile {
+		End(boolean isReader) {
+			super(null, "pipe");
+
+			this.isReader = isReader;
+		}
+
+		public int read(byte[] buf, int offset, int length) {
+			if (!isReader || closed)
+				return -1;
+			return Pipe.this.read(buf, offset, length);
+		}
+
+		public int write(byte[] buf, int offset, int length) {
+			if (isReader || closed)
+				return -1;
+			return Pipe.this.write(buf, offset, length);
+		}
+
+		public void close() {
+			if (!closed) {
+				closed = true;
+				Pipe.this.close(isReader);
+			}
+		}
+
+		Pipe pipe() {
+			return Pipe.this;
+		}
+
+		private boolean isReader;
+
+		private boolean closed = false;
+	}
+
+	/** The capacity of a pipe made without one, from <tt>Pipe.capacity</tt>. */
+	public static final int defaultCapacity = Config.getInteger(
+			"Pipe.capacity", 4096);
+
+	private byte[] buffer;
+
+	/** Index of the oldest byte, and the number of bytes held. */
+	private int head = 0, count = 0;
+
+	/** Open read and write ends. */
+	private int readers = 0, writers = 0;
+
+	private Lock lock = new Lock();
+
+	private Condition dataAvailable = new Condition(lock);
+
+	private Condition spaceAvailable = new Condition(lock);
+}
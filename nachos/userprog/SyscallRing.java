@@ -0,0 +1,223 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+/**
+ * A submission and completion ring that lets a process make many syscalls
+ * with one trap.
+ *
+ * <p>
+ * The ring lives in the process's own memory, in pages it may write: a
+ * header of four counters, then <i>entries</i> submission entries, then
+ * <i>entries</i> completions.
+ * The program fills submission entries and advances <tt>sqTail</tt>; the
+ * kernel carries them out in order, writes a completion for each with the
+ * result, and advances <tt>sqHead</tt> and <tt>cqTail</tt>. The program reads
+ * completions and advances <tt>cqHead</tt>. The counters only ever grow, and
+ * the slot for counter <i>n</i> is <i>n</i> modulo <i>entries</i>.
+ *
+ * <p>
+ * Entries are carried out when the program calls <tt>ringSubmit()</tt>, or,
+ * if the ring was set up with a poller, by a kernel thread that checks the
+ * ring every <tt>SyscallRing.pollTicks</tt> ticks, so the program need not
+ * trap at all. Only the syscalls the process allows may be submitted; others
+ * complete with -1.
+ */
+public class SyscallRing {
+	/**
+	 * Allocate a new ring at <i>vaddr</i> in <i>process</i>'s memory. The
+	 * caller must have checked that the ring lies inside the address space.
+	 *
+	 * @param process the process that owns the ring.
+	 * @param vaddr the address of the ring header.
+	 * @param entries the number of slots in each queue, a power of two.
+	 * @param allowed the syscall numbers that may be submitted.
+	 */
+	public SyscallRing(UserProcess process, int vaddr, int entries,
+			int[] allowed) {
+		Lib.assertTrue(validEntries(entries));
+
+		this.process = process;
+		this.vaddr = vaddr;
+		this.entries = entries;
+		this.allowed = new boolean[SyscallTable.maxSyscalls];
+		for (int syscall : allowed)
+			this.allowed[syscall] = true;
+	}
+
+	/**
+	 * Return true if a ring may have <i>entries</i> slots.
+	 */
+	public static boolean validEntries(int entries) {
+		return entries > 0 && entries <= maxEntries
+				&& (entries & (entries - 1)) == 0;
+	}
+
+	/**
+	 * Return the number of bytes of memory a ring with <i>entries</i> slots
+	 * takes up.
+	 */
+	public static int size(int entries) {
+		return headerSize + entries * (entrySize + completionSize);
+	}
+
+	/**
+	 * Start a kernel thread that carries out submitted entries without
+	 * waiting for <tt>submit()</tt>.
+	 */
+	public void startPoller() {
+		Lib.assertTrue(poller == null);
+
+		poller = new KThread(new Runnable() {
+			public void run() {
+				while (!stopped) {
+					submit(maxEntries);
+					ThreadedKernel.alarm.waitUntil(pollTicks);
+				}
+			}
+		}).setName("syscall ring poller");
+		poller.fork();
+	}
+
+	/**
+	 * Carry out up to <i>count</i> submitted entries, stopping early when
+	 * the completion queue is full.
+	 *
+	 * @return the number of entries carried out, or -1 if the counters in
+	 * the ring are inconsistent or the ring could not be written. Entries
+	 * carried out before a failed write are still counted in <tt>sqHead</tt>,
+	 * and the one whose completion could not be written gets none.
+	 */
+	public int submit(int count) {
+		lock.acquire();
+		int[] header = readInts(vaddr, 4);
+		if (header == null) {
+			lock.release();
+			return -1;
+		}
+		int sqHead = header[0], sqTail = header[1];
+		int cqHead = header[2], cqTail = header[3];
+		if (sqTail - sqHead < 0 || sqTail - sqHead > entries
+				|| cqTail - cqHead < 0 || cqTail - cqHead > entries) {
+			lock.release();
+			return -1;
+		}
+
+		int done = 0;
+		boolean failed = false;
+		while (done < count && sqHead != sqTail && cqTail - cqHead < entries
+				&& !stopped) {
+			int[] entry = readInts(entryAddress(sqHead), entrySize / 4);
+			int result = entry == null ? -1 : run(entry);
+			// the entry has run, whether or not its completion can be written
+			sqHead++;
+			done++;
+			if (!writeInts(completionAddress(cqTail),
+					new int[] { entry == null ? 0 : entry[5], result })) {
+				failed = true;
+				break;
+			}
+			cqTail++;
+		}
+		// record what ran even after a failed write, so it never runs twice
+		if (done > 0 && (!writeInts(vaddr, new int[] { sqHead })
+				|| !writeInts(vaddr + 12, new int[] { cqTail })))
+			failed = true;
+		lock.release();
+		return failed ? -1 : done;
+	}
+
+	/**
+	 * Stop carrying out entries and wait for the poller, if any, to finish.
+	 * An entry already being carried out completes first.
+	 */
+	public void stop() {
+		stopped = true;
+		if (poller != null)
+			poller.join();
+	}
+
+	/**
+	 * Carry out one submission entry: the syscall number, four arguments and
+	 * a word of user data.
+	 */
+	private int run(int[] entry) {
+		int syscall = entry[0];
+		if (syscall < 0 || syscall >= allowed.length || !allowed[syscall]) {
+			Lib.debug(dbgProcess, "syscall " + syscall + " not allowed in ring");
+			return -1;
+		}
+		return process.getSyscallTable().dispatch(process, syscall, entry[1],
+				entry[2], entry[3], entry[4]);
+	}
+
+	private int entryAddress(int counter) {
+		return vaddr + headerSize + (counter & (entries - 1)) * entrySize;
+	}
+
+	private int completionAddress(int counter) {
+		return vaddr + headerSize + entries * entrySize
+				+ (counter & (entries - 1)) * completionSize;
+	}
+
+	/**
+	 * Read <i>count</i> words of the process's memory at <i>address</i>.
+	 *
+	 * @return the words, or <tt>null</tt> if they could not all be read.
+	 */
+	private int[] readInts(int address, int count) {
+		byte[] buffer = new byte[count * 4];
+		if (process.readVirtualMemory(address, buffer) != buffer.length)
+			return null;
+
+		int[] words = new int[count];
+		for (int i = 0; i < count; i++)
+			words[i] = Lib.bytesToInt(buffer, i * 4);
+		return words;
+	}
+
+	/**
+	 * Write <i>words</i> to the process's memory at <i>address</i>.
+	 *
+	 * @return <tt>true</tt> if they were all written.
+	 */
+	private boolean writeInts(int address, int[] words) {
+		byte[] buffer = new byte[words.length * 4];
+		for (int i = 0; i < words.length; i++)
+			Lib.bytesFromInt(buffer, i * 4, words[i]);
+		return process.writeVirtualMemory(address, buffer) == buffer.length;
+	}
+
+	/** The most slots a queue may have. */
+	public static final int maxEntries = 256;
+
+	/** sqHead, sqTail, cqHead and cqTail. */
+	private static final int headerSize = 16;
+
+	/** Syscall number, four arguments and user data. */
+	private static final int entrySize = 24;
+
+	/** User data and result. */
+	private static final int completionSize = 8;
+
+	private static final long pollTicks = Config.getInteger(
+			"SyscallRing.pollTicks", 500);
+
+	private UserProcess process;
+
+	private int vaddr;
+
+	private int entries;
+
+	private boolean[] allowed;
+
+	/** Held while entries are being carried out. */
+	private Lock lock = new Lock();
+
+	private KThread poller = null;
+
+	private boolean stopped = false;
+
+	private static final char dbgProcess = 'a';
+}
@@ -0,0 +1,165 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+
+/**
+ * Maps syscall numbers to the code that handles them, and keeps track of
+ * what each syscall costs.
+ *
+ * <p>
+ * Each process class has a table of its own. A subclass starts from a copy
+ * of its superclass's table and registers its additional syscalls, or
+ * replaces a handler with one that does some checking and then calls the
+ * handler it replaced.
+ *
+ * <p>
+ * Every dispatch is counted kernel-wide by syscall number, along with the
+ * calls that returned -1 and histograms of how long the calls took, both in
+ * simulated ticks and in host nanoseconds. The time of a call that blocks
+ * includes the time other threads ran in the meantime, since that is what
+ * the calling process waited for. <tt>print()</tt> reports the numbers.
+ */
+public class SyscallTable {
+	/**
+	 * The code that carries out one syscall.
+	 */
+	public interface Handler {
+		/**
+		 * Carry out the syscall for <i>process</i>.
+		 *
+		 * @return the value to be returned to the user.
+		 */
+		public int handle(UserProcess process, int a0, int a1, int a2, int a3);
+	}
+
+	/**
+	 * Allocate a new, empty table.
+	 */
+	public SyscallTable() {
+	}
+
+	/**
+	 * Allocate a new table holding the same handlers as <i>parent</i>.
+	 * Registering with either table later does not affect the other.
+	 */
+	public SyscallTable(SyscallTable parent) {
+		System.arraycopy(parent.handlers, 0, handlers, 0, maxSyscalls);
+	}
+
+	/**
+	 * Make <i>handler</i> handle syscall number <i>syscall</i>, replacing any
+	 * handler it had.
+	 *
+	 * @param syscall the syscall number.
+	 * @param name the name of the syscall, for <tt>print()</tt>.
+	 * @param handler the handler.
+	 */
+	public void register(int syscall, String name, Handler handler) {
+		Lib.assertTrue(syscall >= 0 && syscall < maxSyscalls && handler != null);
+
+		handlers[syscall] = handler;
+		names[syscall] = name;
+	}
+
+	/**
+	 * Return the handler for syscall number <i>syscall</i>, or <tt>null</tt>
+	 * if there is none.
+	 */
+	public Handler get(int syscall) {
+		if (syscall < 0 || syscall >= maxSyscalls)
+			return null;
+		return handlers[syscall];
+	}
+
+	/**
+	 * Carry out syscall number <i>syscall</i> for <i>process</i>, and record
+	 * how it went.
+	 *
+	 * @return the value to be returned to the user.
+	 */
+	public int dispatch(UserProcess process, int syscall, int a0, int a1,
+			int a2, int a3) {
+		Handler handler = get(syscall);
+		if (handler == null) {
+			Lib.debug(dbgProcess, "Unknown syscall " + syscall);
+			Lib.assertNotReached("Unknown system call!");
+		}
+
+		// counted up front, since exit() never returns
+		calls[syscall]++;
+		long startTicks = Machine.timer().getTime();
+		long startNanos = System.nanoTime();
+
+		int result = handler.handle(process, a0, a1, a2, a3);
+
+		record(tickHistograms[syscall], Machine.timer().getTime() - startTicks);
+		record(nanoHistograms[syscall], System.nanoTime() - startNanos);
+		if (result == -1)
+			errors[syscall]++;
+		return result;
+	}
+
+	/**
+	 * Add <i>value</i> to the bucket for its power of two.
+	 */
+	private static void record(int[] histogram, long value) {
+		int bucket = 64 - Long.numberOfLeadingZeros(Math.max(value, 0));
+		histogram[Math.min(bucket, numBuckets - 1)]++;
+	}
+
+	/**
+	 * Print the count, errors and latency histograms of every syscall that
+	 * was made.
+	 */
+	public static void print() {
+		for (int i = 0; i < maxSyscalls; i++) {
+			if (calls[i] == 0)
+				continue;
+
+			System.out.println("Syscall " + i + " (" + names[i] + "): calls "
+					+ calls[i] + ", errors " + errors[i]);
+			System.out.println("\tticks: " + histogram(tickHistograms[i]));
+			System.out.println("\tns:    " + histogram(nanoHistograms[i]));
+		}
+	}
+
+	/**
+	 * Return the non-empty buckets of <i>histogram</i>, each as the bucket's
+	 * upper bound and its count.
+	 */
+	private static String histogram(int[] histogram) {
+		StringBuffer buffer = new StringBuffer();
+		for (int bucket = 0; bucket < numBuckets; bucket++) {
+			if (histogram[bucket] == 0)
+				continue;
+			if (buffer.length() > 0)
+				buffer.append(", ");
+			if (bucket == numBuckets - 1)
+				buffer.append(">=" + (1L << (bucket - 1)));
+			else
+				buffer.append("<" + (1L << bucket));
+			buffer.append(": " + histogram[bucket]);
+		}
+		return buffer.length() > 0 ? buffer.toString() : "none";
+	}
+
+	/** One more than the highest syscall number. */
+	public static final int maxSyscalls = 64;
+
+	/** Bucket <i>i</i> counts values below 2^<i>i</i>; the last, the rest. */
+	private static final int numBuckets = 40;
+
+	private Handler[] handlers = new Handler[maxSyscalls];
+
+	private static String[] names = new String[maxSyscalls];
+
+	private static long[] calls = new long[maxSyscalls];
+
+	private static long[] errors = new long[maxSyscalls];
+
+	private static int[][] tickHistograms = new int[maxSyscalls][numBuckets];
+
+	private static int[][] nanoHistograms = new int[maxSyscalls][numBuckets];
+
+	private static final char dbgProcess = 'a';
+}
@@ -4,7 +4,6 @@ import nachos.machine.*;
 import nachos.threads.*;
 import nachos.userprog.*;
 
-import java.util.LinkedList;
 
 /**
  * A kernel that can support multiple user processes.
@@ -23,7 +22,7 @@ public class UserKernel extends ThreadedKernel {
 	 */
 	public void initialize(String[] args) {
 		super.initialize(args);
-		getAvailablePages();
+		pagesAvailable = new FrameAllocator(Machine.processor().getNumPhysPages());
 		console = new SynchConsole(Machine.console());
 		Machine.processor().setExceptionHandler(new Runnable() {
 			public void run() {
@@ -36,12 +35,13 @@ public class UserKernel extends ThreadedKernel {
 //		rwMutex = new Lock();
 		pidCounter = 0;
 		runningProcessCounter = 0;
-	}
-
-	private void getAvailablePages() {
-		for(int i = 0; i < Machine.processor().getNumPhysPages(); i++) {
-			pagesAvailable.add(i);
-		}
+		ioQueue = new WorkQueue("async io", Config.getInteger(
+				"UserKernel.ioWorkers", 4), 1);
+		aioPagesMutex = new Lock();
+		aioPagesPinned = 0;
+		maxAioPages = Config.getInteger("UserKernel.maxAioPages", Math.max(1,
+				Machine.processor().getNumPhysPages() / 2));
+		imageCache = new ImageCache();
 	}
 
 	/**
@@ -50,6 +50,11 @@ public class UserKernel extends ThreadedKernel {
 	public void selfTest() {
 		super.selfTest();
 
+		FileDescriptorTable.selfTest();
+		FrameAllocator.selfTest();
+		Pipe.selfTest();
+		UserProcess.selfTest();
+
 		System.out.println("Testing the console device. Typed characters");
 		System.out.println("will be echoed until q is typed.");
 
@@ -125,20 +130,72 @@ public class UserKernel extends ThreadedKernel {
 		KThread.currentThread().finish();
 	}
 
+	/**
+	 * Called when the named file may have been rewritten or removed. Drops
+	 * any cached copy of it as an executable.
+	 *
+	 * @param name the name of the file.
+	 */
+	public void executableChanged(String name) {
+		imageCache.invalidate(name);
+	}
+
+	/**
+	 * Reserve <i>count</i> pages for an asynchronous request to pin, unless
+	 * that would take the pages pinned by all requests past
+	 * <tt>maxAioPages</tt>.
+	 *
+	 * @return <tt>true</tt> if the pages were reserved.
+	 */
+	public static boolean reserveAioPages(int count) {
+		aioPagesMutex.acquire();
+		boolean reserved = aioPagesPinned + count <= maxAioPages;
+		if (reserved)
+			aioPagesPinned += count;
+		aioPagesMutex.release();
+		return reserved;
+	}
+
+	/**
+	 * Give back <i>count</i> pages reserved by <tt>reserveAioPages()</tt>.
+	 */
+	public static void releaseAioPages(int count) {
+		aioPagesMutex.acquire();
+		aioPagesPinned -= count;
+		aioPagesMutex.release();
+	}
+
 	/**
 	 * Terminate this kernel. Never returns.
 	 */
 	public void terminate() {
+		imageCache.print();
+		SyscallTable.print();
 		super.terminate();
 	}
 
 	/** Globally accessible reference to the synchronized console. */
 	public static SynchConsole console;
 
+	/** Executables recently started, kept in memory. */
+	public static ImageCache imageCache;
+
+	/** Kernel threads that carry out asynchronous I/O requests. */
+	public static WorkQueue ioQueue;
+
+	/** Most pages all asynchronous requests may pin at once. */
+	private static int maxAioPages;
+
+	/** Pages pinned by asynchronous requests. */
+	private static int aioPagesPinned;
+
+	private static Lock aioPagesMutex;
+
 	// dummy variables to make javac smarter
 	private static Coff dummy1 = null;
 
-	public static LinkedList<Integer> pagesAvailable = new LinkedList<>();
+	/** The free physical frames, guarded by <tt>pagesAvailableMutex</tt>. */
+	public static FrameAllocator pagesAvailable;
 
 	public static Lock pagesAvailableMutex;
 
@@ -8,6 +8,7 @@ import nachos.vm.*;
 import java.awt.print.Pageable;
 import java.io.EOFException;
 import java.io.FileDescriptor;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.NoSuchElementException;
@@ -38,9 +39,9 @@ public class UserProcess {
 //		// dummy
 //		for (int i = 0; i < numPhysPages; i++)
 //			pageTable[i] = new TranslationEntry(i, i, true, false, false, false);
-		fileDescriptors = new OpenFile[16];
-		fileDescriptors[0] = UserKernel.console.openForReading();
-		fileDescriptors[1] = UserKernel.console.openForWriting();
+		fileDescriptors = new FileDescriptorTable();
+		fileDescriptors.add(UserKernel.console.openForReading());
+		fileDescriptors.add(UserKernel.console.openForWriting());
 
 		//part 3
 		childrenExitStatus = new HashMap<>();
@@ -92,11 +93,43 @@ public class UserProcess {
 			return false;
 		}
 		thread = new UThread(this);
+		// every job started by the first process is a fair-share group of
+		// its own, anything it execs in turn shares that group
+		if (parent == null || parent.pid == 0)
+			thread.setSchedulingGroup(new SchedulingGroup(name));
+		start(name);
+		return true;
+	}
+
+	/**
+	 * Fork this process's thread, which must already be set, and count the
+	 * process as running.
+	 *
+	 * @param name the name to give the thread.
+	 */
+	protected void start(String name) {
 		thread.setName(name).fork();
 		UserKernel.runningProcessCounterMutex.acquire();
 		UserKernel.runningProcessCounter++;
 		UserKernel.runningProcessCounterMutex.release();
-		return true;
+	}
+
+	/**
+	 * Make <i>child</i> a child of this process, so it can be joined, and
+	 * hand it this process's standard input and output if they are pipes.
+	 *
+	 * @param child a new process that has not started running.
+	 */
+	protected void adopt(UserProcess child) {
+		// a pipe on our stdin or stdout is handed down, so pipelines work
+		for (int fd = 0; fd <= 1; fd++) {
+			OpenFile end = Pipe.reopen(fileDescriptors.get(fd));
+			if (end != null)
+				child.fileDescriptors.set(fd, end);
+		}
+		// child is not exited so no exit status
+		children.put(child.pid, child);
+		child.parent = this;
 	}
 
 	/**
@@ -347,20 +380,11 @@ public class UserProcess {
 	private boolean load(String name, String[] args) {
 		Lib.debug(dbgProcess, "UserProcess.load(\"" + name + "\")");
 
-		OpenFile executable = ThreadedKernel.fileSystem.open(name, false);
-		if (executable == null) {
-			System.out.println("\topen failed");
-			Lib.debug(dbgProcess, "\topen failed");
-			return false;
-		}
-
-		try {
-			coff = new Coff(executable);
-		}
-		catch (EOFException e) {
-			executable.close();
+		executableName = name;
+		coff = UserKernel.imageCache.open(name);
+		if (coff == null) {
 			System.out.println("coff load failed");
-			Lib.debug(dbgProcess, "\tcoff load failed");
+			Lib.debug(dbgProcess, "\topen or coff load failed");
 			return false;
 		}
 
@@ -444,18 +468,25 @@ public class UserProcess {
 	protected boolean loadSections() {
 		System.out.println("load!");
 		Lib.debug(dbgProcess, "load section starts");
-		if (numPages > Machine.processor().getNumPhysPages() || numPages>UserKernel.pagesAvailable.size()) {
+		if (numPages > Machine.processor().getNumPhysPages() || numPages>UserKernel.pagesAvailable.numFree()) {
 			coff.close();
 			Lib.debug(dbgProcess, "\tinsufficient physical memory");
 			return false;
 		}
 		// initialize page table
 		pageTable = new TranslationEntry[numPages];
+		int[] frames = new int[numPages];
 		UserKernel.pagesAvailableMutex.acquire();
+		boolean allocated = UserKernel.pagesAvailable.allocate(frames, numPages);
+		UserKernel.pagesAvailableMutex.release();
+		if (!allocated) {
+			coff.close();
+			Lib.debug(dbgProcess, "\tinsufficient physical memory");
+			return false;
+		}
 		for (int i = 0; i < numPages; i++) {
-			pageTable[i] = new TranslationEntry(i,UserKernel.pagesAvailable.remove(), true, false, false, false);
+			pageTable[i] = new TranslationEntry(i, frames[i], true, false, false, false);
 		}
-		UserKernel.pagesAvailableMutex.release();
 		// acquire the lock before loading
 		//UserKernel.pagesAvailableMutex.acquire();
 		// load sections
@@ -520,17 +551,21 @@ public class UserProcess {
 	 * Release any resources allocated by <tt>loadSections()</tt>.
 	 */
 	protected void unloadSections() {
+		int[] freed = new int[pageTable.length];
+		int numFreed = 0;
 		for (int i = 0; i < pageTable.length; i++){
 			if (pageTable[i] == null || !pageTable[i].valid){
 				continue;
 			}
-			int ppn = pageTable[i].ppn;
-			// acquire mutex lock
-			UserKernel.pagesAvailableMutex.acquire();
-			UserKernel.pagesAvailable.add(ppn);
-			UserKernel.pagesAvailableMutex.release();
+			freed[numFreed++] = pageTable[i].ppn;
 			pageTable[i] = null;
 		}
+		// hand the frames back in one batch; this is cheap enough to do
+		// right away, and a frame must never be both mapped and queued for
+		// freeing
+		UserKernel.pagesAvailableMutex.acquire();
+		UserKernel.pagesAvailable.free(freed, numFreed);
+		UserKernel.pagesAvailableMutex.release();
 	}
 
 	/**
@@ -543,6 +578,14 @@ public class UserProcess {
 	public void initRegisters() {
 		Processor processor = Machine.processor();
 
+		// a forked process starts from the register set it was given
+		if (initialRegisters != null) {
+			for (int i = 0; i < Processor.numUserRegisters; i++)
+				processor.writeRegister(i, initialRegisters[i]);
+			initialRegisters = null;
+			return;
+		}
+
 		// by default, everything's 0
 		for (int i = 0; i < processor.numUserRegisters; i++)
 			processor.writeRegister(i, 0);
@@ -580,15 +623,29 @@ public class UserProcess {
 		// ...and leave it as the top of handleExit so that we
 		// can grade your implementation.
 		System.out.println("UserProcess.handleExit (" + status + ")");
-		// close all file descriptors
-		for (OpenFile openedFile : fileDescriptors) {
-			if (openedFile != null) {
+		// outstanding asynchronous I/O still uses this process's frames
+		waitForAsyncIO();
+		if (ring != null)
+			ring.stop();
+		// unload sections while files are still open, mapped pages go back
+		// to them
+		unloadSections();
+		// close all file descriptors. Streams close now, so the readers of a
+		// pipe see end of file as soon as its last writer exits; closing a
+		// disk file can wait for a worker, since a file removed while open
+		// goes once the close comes
+		for (int i = 0; i < fileDescriptors.size(); i++) {
+			final OpenFile openedFile = fileDescriptors.release(i);
+			if (openedFile != null && openedFile.tell() < 0) {
 				openedFile.close();
-				openedFile = null; //need to clear descriptor?
+			} else if (openedFile != null) {
+				ThreadedKernel.workQueue.submit(new Runnable() {
+					public void run() {
+						openedFile.close();
+					}
+				});
 			}
 		}
-		// unload sections
-		unloadSections();
 		//close coff
 		coff.close();
 		// save exit status to childrenExitStatus
@@ -610,7 +667,8 @@ public class UserProcess {
 		// check if this process is the last process
 		UserKernel.runningProcessCounterMutex.acquire();
 		if (--UserKernel.runningProcessCounter == 0) {
-			// terminate kernal
+			// finish deferred cleanup, then terminate kernal
+			ThreadedKernel.workQueue.flush();
 			Kernel.kernel.terminate();
 		}
 		UserKernel.runningProcessCounterMutex.release();
@@ -635,32 +693,25 @@ public class UserProcess {
 	 *
 	 * Returns the new file descriptor, or -1 if an error occurred.
 	 */
-	// FIXME case where run out of file descriptors. Also if the file is already in fd.
 	private int handleCreat(int name) {
 		String fileName = readVirtualMemoryString(name, 256);
 		if (fileName==null || fileName.length() == 0) {
 			System.out.println("handleCreat: No fileName found from Virtual Memory.");
 			return -1;
 		}
-		// check if we run out of fd
-		int entry = -1;
-		for (int i=2; i<fileDescriptors.length; i++) {
-			if (fileDescriptors[i] == null) {
-				entry = i;
-				System.out.println("handleCreat: file [" + fileName + "] assigned to fd [" + entry +"]");
-				break;
-			}
-		}
-		if (entry < 0) {
-			System.out.println("handleCreat: fileDescriptors reaches the max capacity.");
-			return -1;
-		}
 		OpenFile openFile = Machine.stubFileSystem().open(fileName, true);
 		if (openFile==null) {
 			System.out.println("handleCreat: No file of fileName found from fileSystem.");
 			return -1;
 		}
-		fileDescriptors[entry] = openFile;
+		fileChanged(fileName);
+		// check if we run out of fd
+		int entry = fileDescriptors.add(openFile);
+		if (entry < 0) {
+			openFile.close();
+			System.out.println("handleCreat: fileDescriptors reaches the max capacity.");
+			return -1;
+		}
 		System.out.println("handleCreat: file [" + fileName + "] successfully created at fd [" + entry +"]");
 		return entry;
 	}
@@ -686,15 +737,12 @@ public class UserProcess {
 			System.out.println("handleOpen: No file of fileName found from fileSystem.");
 			return -1;
 		} else {
-			for (int i=2; i<fileDescriptors.length; i++) {
-				if (fileDescriptors[i]==null) {
-					fileDescriptors[i] = openFile;
-					return i;
-				}
+			int entry = fileDescriptors.add(openFile);
+			if (entry < 0) {
+				openFile.close();
+				System.out.println("handleOpen: fileDescriptors reaches the max capacity.");
 			}
-			openFile.close();
-			System.out.println("handleOpen: fileDescriptors reaches the max capacity.");
-			return -1;
+			return entry;
 		}
 	}
 
@@ -721,65 +769,16 @@ public class UserProcess {
 	 * no more data is available.
 	 */
 	private int handleRead(int fileDescriptor, int buffer, int count) {
-		if (fileDescriptor<0 || fileDescriptor>15) {
-			System.out.println("handleRead: fileDescriptor is invalid.");
-			return -1;
-		}
-		OpenFile openFile = fileDescriptors[fileDescriptor];
+		OpenFile openFile = fileDescriptors.get(fileDescriptor);
 		if (openFile==null) {
-			System.out.println("handleRead: there is no file at given fileDescriptor.");
+			Lib.debug(dbgProcess, "handleRead: fileDescriptor is invalid or has no file.");
 			return -1;
 		}
-		// check count
-		if (count < 0 || count > pageTable.length*pageSize) {
-			System.out.println("handleRead: Initial count out of bound, either < 0 or > maximum space.");
-			return -1;
-		}
-		byte[] pageSizeArray = new byte[pageSize];
-		int readCount = 0;
-		while (count > pageSize) {
-			int oneTurnRead = openFile.read(pageSizeArray,0,pageSize);
-			if (oneTurnRead == 0 ) return readCount;
-			if (oneTurnRead < 0) {
-				System.out.println("handleRead: openFile read method failure.");
-				return -1;
-			}
-			// Write
-			int oneTurnWrite = writeVirtualMemory(buffer,pageSizeArray,0,oneTurnRead);
-			if (oneTurnRead < oneTurnWrite) {
-				System.out.println("handleRead: write onto VM failure.");
-				return -1;
-			}
-			// Handle stuck in read only page case
-			oneTurnRead = Math.min(oneTurnRead, oneTurnWrite);
-			System.out.println("handleRead: read/write " + count + " bytes in total, read/write " + oneTurnRead + " byte in this turn");
-			buffer += oneTurnRead;
-			readCount += oneTurnRead;
-			count -= oneTurnRead;
-		}
-//		UserKernel.rwMutex.acquire();
-		int oneTurnRead = openFile.read(pageSizeArray,0,count);
-		System.out.println("handleRead: read/write " + oneTurnRead + " bytes before write to VM this turn");
-//		UserKernel.rwMutex.release();
-		if (oneTurnRead < 0) {
-			System.out.println("handleRead: openFile read method failure.");
+		if (!validBuffer(buffer, count)) {
+			Lib.debug(dbgProcess, "handleRead: buffer out of bound.");
 			return -1;
 		}
-		int oneTurnWrite = writeVirtualMemory(buffer,pageSizeArray,0,oneTurnRead);
-		if (oneTurnRead < oneTurnWrite) {
-			System.out.println("handleRead: write onto VM failure.");
-			return -1;
-		}
-		// Handle stuck in read only page case
-		oneTurnRead = Math.min(oneTurnRead, oneTurnWrite);
-		System.out.println("handleRead: read/write " + oneTurnRead + " bytes in this turn");
-		readCount += oneTurnRead;
-		count -= oneTurnRead;
-//		if (count!=0) {
-//			System.out.println("handleRead: not finish reading all.");
-//			return -1;
-//		}
-		return readCount;
+		return transferDirect(openFile, -1, buffer, count, true);
 	}
 
 	/**
@@ -802,75 +801,286 @@ public class UserProcess {
 	 * if a network stream has already been terminated by the remote host.
 	 */
 	private int handleWrite(int fileDescriptor, int buffer, int count) {
-		// System.out.println("count: "+count);
-		if (fileDescriptor<0 || fileDescriptor>15) {
-			System.out.println("handleWrite: fileDescriptor is invalid.");
+		OpenFile openFile = fileDescriptors.get(fileDescriptor);
+		if (openFile==null) {
+			Lib.debug(dbgProcess, "handleWrite: fileDescriptor is invalid or has no file.");
 			return -1;
 		}
-		OpenFile openFile = fileDescriptors[fileDescriptor];
-		if (openFile==null) {
-			System.out.println("handleWrite: there is no file at given fileDescriptor.");
+		if (!validBuffer(buffer, count)) {
+			Lib.debug(dbgProcess, "handleWrite: buffer out of bound.");
 			return -1;
 		}
-		byte[] pageSizeArray = new byte[pageSize];
-		int writeCount = 0;
-		while (count > pageSize) {
-			int oneTurnRead = readVirtualMemory(buffer,pageSizeArray);
-			// System.out.println("One turn read: " + oneTurnRead);
-			int oneTurnWrite = openFile.write(pageSizeArray,0,oneTurnRead);
-			// should check this case first to make sure we read enough 
-			if(oneTurnRead != pageSize){
-				System.out.println("NO enough space.");
-				return -1;
-			}
-			if (oneTurnWrite == 0 ) {
-				System.out.println("We are here.");
-				return writeCount;
-			}
-			if (oneTurnWrite < 0) {
-				System.out.println("handleWrite: openFile write method failure.");
-				return -1;
-			}
-			if (oneTurnRead!=oneTurnWrite) {
-				System.out.println("handleWrite: not match read from VM failure.");
-				return -1;
-			}
-			buffer += oneTurnWrite;
-			writeCount += oneTurnWrite;
-			count -= oneTurnWrite;
+		int writeCount = transferDirect(openFile, -1, buffer, count, false);
+		fileWritten(openFile);
+		if (writeCount != count) {
+			Lib.debug(dbgProcess, "handleWrite: not finish writing all.");
+			return -1;
 		}
-		if (count<0) {
-			System.out.println("handleWrite: invalid count.");
+		return writeCount;
+	}
+
+	/**
+	 * Handle the readv() and writev() system calls.
+	 *
+	 * Move data between the file or stream referred to by fileDescriptor and
+	 * the iovcnt buffers described by the iovec array at iov, in order, as if
+	 * by one read() or write() on their concatenation. The whole iovec array
+	 * is checked before any data moves. For a disk file every segment is
+	 * transferred at an explicit position and the file position is updated
+	 * once at the end.
+	 *
+	 * readv() returns the number of bytes read, stopping at the first short
+	 * segment or error; it returns -1 only if nothing was read. writev()
+	 * returns the total length of all segments, or -1 if
+	 * fewer bytes could be written.
+	 */
+	private int handleVectorIO(int fileDescriptor, int iov, int iovcnt,
+			boolean read) {
+		OpenFile openFile = fileDescriptors.get(fileDescriptor);
+		if (openFile==null) {
+			Lib.debug(dbgProcess, "handleVectorIO: fileDescriptor is invalid or has no file.");
 			return -1;
 		}
-		pageSizeArray = new byte[count];
-		//System.out.println("Start reading rest things buffer: "+buffer+" pageSize: " + pageSizeArray.length);
-		//System.out.println(buffer);
-		int oneTurnRead = readVirtualMemory(buffer,pageSizeArray);
-		// lock
-		int oneTurnWrite = openFile.write(pageSizeArray,0,oneTurnRead);
-		if (oneTurnWrite < 0) {
-			System.out.println("handleWrite: openFile write method failure.");
+		if (iovcnt < 0 || iovcnt > maxIovecs) {
+			Lib.debug(dbgProcess, "handleVectorIO: invalid iovcnt.");
 			return -1;
 		}
-		// System.out.println("read: " + oneTurnRead+ " write: "+ oneTurnWrite);
-		if (oneTurnRead!=oneTurnWrite) {
-			System.out.println("handleWrite: not match read from VM failure.");
+
+		// fetch and check the whole iovec array up front
+		byte[] vec = new byte[iovcnt * iovecSize];
+		if (readVirtualMemory(iov, vec) != vec.length) {
+			Lib.debug(dbgProcess, "handleVectorIO: iovec array out of bound.");
 			return -1;
 		}
-		writeCount += oneTurnWrite;
-		count -= oneTurnWrite;
-		// System.out.println("writeCount: " + writeCount+ " count: " +count);
-		if (count!=0) {
-			System.out.println("handleWrite: not finish writing all.");
+		int[] bases = new int[iovcnt], lengths = new int[iovcnt];
+		long total = 0;
+		for (int i = 0; i < iovcnt; i++) {
+			bases[i] = Lib.bytesToInt(vec, i * iovecSize);
+			lengths[i] = Lib.bytesToInt(vec, i * iovecSize + 4);
+			if (!validBuffer(bases[i], lengths[i])) {
+				Lib.debug(dbgProcess, "handleVectorIO: segment " + i + " out of bound.");
+				return -1;
+			}
+			total += lengths[i];
+		}
+		if (total > Integer.MAX_VALUE)
 			return -1;
+
+		// streams have no position, disk files get one seek at the end
+		int pos = openFile.tell();
+		int done = 0;
+		for (int i = 0; i < iovcnt; i++) {
+			int moved = transferDirect(openFile, pos < 0 ? -1 : pos + done,
+					bases[i], lengths[i], read);
+			if (moved < 0) {
+				// earlier segments have moved; report them, not the error
+				if (done == 0)
+					return -1;
+				break;
+			}
+			done += moved;
+			if (moved < lengths[i])
+				break;
 		}
-		if (writeCount>pageTable.length*pageSize) {
-			System.out.println("Out of address space.");
+		if (pos >= 0)
+			openFile.seek(pos + done);
+		if (!read)
+			fileWritten(openFile);
+
+		if (!read && done != total) {
+			Lib.debug(dbgProcess, "handleVectorIO: not finish writing all.");
 			return -1;
 		}
-		// System.out.println(pageTable.length*pageSize);
-		return writeCount;
+		return done;
+	}
+
+	/** Bytes per <tt>struct iovec</tt>: a buffer address and a length. */
+	private static final int iovecSize = 8;
+
+	/** Largest iovec array readv()/writev() accept. */
+	private static final int maxIovecs = 1024;
+
+	/**
+	 * Tell the kernel that the named file is being rewritten or removed, so
+	 * that no cached copy of it is used to start a program.
+	 */
+	protected void fileChanged(String name) {
+		((UserKernel) Kernel.kernel).executableChanged(name);
+	}
+
+	/**
+	 * Call <tt>fileChanged()</tt> for <i>file</i> once a write to it has
+	 * finished, so that an <tt>exec()</tt> made while the write was under way
+	 * does not leave a stale image cached. Streams such as the console and
+	 * pipes have no position and are never executables, so writes to them
+	 * are skipped.
+	 */
+	protected void fileWritten(OpenFile file) {
+		if (file.tell() >= 0)
+			fileChanged(file.getName());
+	}
+
+	/**
+	 * Return true if <i>count</i> bytes starting at <i>vaddr</i> lie inside
+	 * this process's address space.
+	 */
+	protected boolean validBuffer(int vaddr, int count) {
+		return vaddr >= 0 && count >= 0
+				&& (long) vaddr + count <= (long) pageTable.length * pageSize;
+	}
+
+	/**
+	 * Return true if <i>count</i> bytes starting at <i>vaddr</i> lie inside
+	 * this process's address space and it may write all of them.
+	 */
+	protected boolean writableBuffer(int vaddr, int count) {
+		if (!validBuffer(vaddr, count))
+			return false;
+
+		int firstVPN = Processor.pageFromAddress(vaddr);
+		int lastVPN = Processor.pageFromAddress(vaddr + count - 1);
+		for (int vpn = firstVPN; count > 0 && vpn <= lastVPN; vpn++) {
+			if (!isWritable(vpn))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Return true if this process may write to virtual page <i>vpn</i>.
+	 */
+	protected boolean isWritable(int vpn) {
+		TranslationEntry entry = pageTable[vpn];
+		return entry != null && !entry.readOnly;
+	}
+
+	/**
+	 * Move <i>count</i> bytes between <i>file</i> and this process's memory
+	 * at <i>vaddr</i>, page by page, passing main memory and the physical
+	 * address straight to <tt>OpenFile.read()</tt> or <tt>write()</tt> so no
+	 * intermediate buffer is needed. Each page is pinned for the duration of
+	 * its transfer. Stops early at end of file. Streams go through
+	 * <tt>transferStream()</tt> instead. The buffer must have been checked
+	 * with <tt>validBuffer()</tt>.
+	 *
+	 * @param pos the file position to start at, or -1 to use and advance the
+	 * file's own pointer.
+	 * @param toMemory <tt>true</tt> to read from the file into memory,
+	 * <tt>false</tt> to write memory to the file.
+	 * @return the number of bytes moved, or -1 if a page could not be used
+	 * or the file reported an error before any were. Bytes already moved are
+	 * never dropped: they have left a stream or advanced the file position.
+	 */
+	protected int transferDirect(OpenFile file, int pos, int vaddr, int count,
+			boolean toMemory) {
+		if (file.tell() < 0)
+			return transferStream(file, vaddr, count, toMemory);
+
+		byte[] memory = Machine.processor().getMemory();
+		int done = 0;
+		while (done < count) {
+			int vpn = Processor.pageFromAddress(vaddr + done);
+			int pageOffset = Processor.offsetFromAddress(vaddr + done);
+			int amount = Math.min(count - done, pageSize - pageOffset);
+
+			int ppn = pinPage(vpn, toMemory);
+			if (ppn == -1)
+				return done > 0 ? done : -1;
+			int paddr = Processor.makeAddress(ppn, pageOffset);
+			int moved;
+			if (pos < 0)
+				moved = toMemory ? file.read(memory, paddr, amount) : file.write(
+						memory, paddr, amount);
+			else
+				moved = toMemory ? file.read(pos + done, memory, paddr, amount)
+						: file.write(pos + done, memory, paddr, amount);
+			unpinPage(ppn);
+
+			if (moved < 0)
+				return done > 0 ? done : -1;
+			done += moved;
+			if (moved < amount)
+				break;
+		}
+		return done;
+	}
+
+	/**
+	 * Move <i>count</i> bytes between stream <i>file</i>, such as a pipe or
+	 * the console, and this process's memory at <i>vaddr</i>, copying through
+	 * a kernel buffer. A stream can block for as long as another process
+	 * pleases, so no page is kept pinned meanwhile. A write of up to
+	 * <tt>streamBufferSize</tt> bytes reaches the stream in one call, so a
+	 * write that fits in a pipe is never interleaved with another, wherever
+	 * the page boundaries fall. A read makes one call and returns what the
+	 * stream had.
+	 *
+	 * @return the number of bytes moved, or -1 if none could be.
+	 */
+	private int transferStream(OpenFile file, int vaddr, int count,
+			boolean toMemory) {
+		byte[] buffer = new byte[Math.min(count, streamBufferSize)];
+		if (toMemory) {
+			// data taken from a stream cannot be put back, so check first
+			if (!writableBuffer(vaddr, buffer.length))
+				return -1;
+			int moved = file.read(buffer, 0, buffer.length);
+			if (moved <= 0)
+				return moved;
+			return writeVirtualMemory(vaddr, buffer, 0, moved);
+		}
+
+		int done = 0;
+		while (done < count) {
+			int amount = Math.min(count - done, buffer.length);
+			int moved = -1;
+			if (readVirtualMemory(vaddr + done, buffer, 0, amount) == amount)
+				moved = file.write(buffer, 0, amount);
+			if (moved < 0)
+				return done > 0 ? done : -1;
+			done += moved;
+			if (moved < amount)
+				break;
+		}
+		return done;
+	}
+
+	/**
+	 * Bytes a stream transfer moves per call, at least a pipe's capacity so
+	 * that writes that fit in a pipe reach it in one piece.
+	 */
+	private static final int streamBufferSize = Math.max(Processor.pageSize,
+			Pipe.defaultCapacity);
+
+	/**
+	 * Make virtual page <i>vpn</i> resident and keep it in its frame until
+	 * <tt>unpinPage()</tt> is called. Marks the page used, and dirty if
+	 * <i>write</i> is set.
+	 *
+	 * @param vpn the virtual page to pin.
+	 * @param write <tt>true</tt> if the page is about to be written.
+	 * @return the physical page number, or -1 if <i>vpn</i> is not a valid
+	 * page or <i>write</i> is set and the page is read-only.
+	 */
+	protected int pinPage(int vpn, boolean write) {
+		if (vpn < 0 || vpn >= pageTable.length)
+			return -1;
+		TranslationEntry entry = pageTable[vpn];
+		if (entry == null || !entry.valid || (write && entry.readOnly))
+			return -1;
+		entry.used = true;
+		if (write)
+			entry.dirty = true;
+		return entry.ppn;
+	}
+
+	/**
+	 * Release a page pinned by <tt>pinPage()</tt>. Frames are never taken
+	 * away from a <tt>UserProcess</tt>, so there is nothing to do here.
+	 *
+	 * @param ppn the physical page returned by <tt>pinPage()</tt>.
+	 */
+	protected void unpinPage(int ppn) {
 	}
 
 	/**
@@ -883,15 +1093,335 @@ public class UserProcess {
 	 * Returns 0 on success, or -1 if an error occurred.
 	 */
 	private int handleClose(int fileDescriptor) {
-		if (fileDescriptor<=1 || fileDescriptor>15 || fileDescriptors[fileDescriptor]==null) {
+		if (fileDescriptor<=1 || !fileDescriptors.close(fileDescriptor)) {
 			System.out.println("handleClose: fileDescriptor is invalid or no file at given fileDescriptor.");
 			return -1;
 		}
-		fileDescriptors[fileDescriptor].close();
-		fileDescriptors[fileDescriptor] = null;
 		return 0;
 	}
 
+	/**
+	 * Handle the dup() system call.
+	 *
+	 * Return the lowest unused file descriptor, made to refer to the same file
+	 * or stream as fileDescriptor. The two descriptors share the file
+	 * position, and the file stays open until both are closed.
+	 *
+	 * Returns the new file descriptor, or -1 if an error occurred.
+	 */
+	private int handleDup(int fileDescriptor) {
+		return fileDescriptors.dup(fileDescriptor);
+	}
+
+	/**
+	 * Handle the dup2() system call.
+	 *
+	 * Make newFileDescriptor refer to the same file or stream as
+	 * fileDescriptor, closing it first if it was open.
+	 *
+	 * Returns newFileDescriptor, or -1 if an error occurred.
+	 */
+	private int handleDup2(int fileDescriptor, int newFileDescriptor) {
+		return fileDescriptors.dup2(fileDescriptor, newFileDescriptor);
+	}
+
+	/**
+	 * Handle the pipe() system call.
+	 *
+	 * Create a pipe and store a file descriptor for its read end in
+	 * fileDescriptors[0] and one for its write end in fileDescriptors[1].
+	 *
+	 * Returns 0 on success, or -1 if an error occurred.
+	 */
+	private int handlePipe(int fds) {
+		if (!validBuffer(fds, 8)) {
+			Lib.debug(dbgProcess, "handlePipe: fds out of bound.");
+			return -1;
+		}
+		Pipe pipe = new Pipe();
+		OpenFile readEnd = pipe.openForReading();
+		OpenFile writeEnd = pipe.openForWriting();
+		int readFd = fileDescriptors.add(readEnd);
+		int writeFd = readFd < 0 ? -1 : fileDescriptors.add(writeEnd);
+		if (writeFd < 0) {
+			if (readFd >= 0)
+				fileDescriptors.release(readFd);
+			readEnd.close();
+			writeEnd.close();
+			Lib.debug(dbgProcess, "handlePipe: fileDescriptors reaches the max capacity.");
+			return -1;
+		}
+
+		byte[] buffer = new byte[8];
+		Lib.bytesFromInt(buffer, 0, readFd);
+		Lib.bytesFromInt(buffer, 4, writeFd);
+		if (writeVirtualMemory(fds, buffer) != buffer.length) {
+			fileDescriptors.close(readFd);
+			fileDescriptors.close(writeFd);
+			return -1;
+		}
+		return 0;
+	}
+
+	/**
+	 * Handle the ringSetup() system call.
+	 *
+	 * Use the ring of the given number of entries at address to submit
+	 * syscalls from now on, starting a kernel thread to poll it if flags has
+	 * ringPoll set. A process has at most one ring, and keeps it until it
+	 * exits. The kernel writes the ring's counters and completions, so all
+	 * of it must be in writable pages.
+	 *
+	 * Returns 0 on success, or -1 if an error occurred.
+	 */
+	private int handleRingSetup(int address, int entries, int flags) {
+		if (ring != null || !SyscallRing.validEntries(entries)
+				|| (flags & ~ringPoll) != 0
+				|| !writableBuffer(address, SyscallRing.size(entries))) {
+			Lib.debug(dbgProcess, "handleRingSetup: bad ring");
+			return -1;
+		}
+		ring = new SyscallRing(this, address, entries, ringSyscalls);
+		if ((flags & ringPoll) != 0)
+			ring.startPoller();
+		return 0;
+	}
+
+	/**
+	 * Handle the ringSubmit() system call.
+	 *
+	 * Carry out up to count entries submitted to the ring.
+	 *
+	 * Returns the number of entries carried out, or -1 if the process has no
+	 * ring or the ring is inconsistent or could not be written.
+	 */
+	private int handleRingSubmit(int count) {
+		if (ring == null || count < 0)
+			return -1;
+		return ring.submit(count);
+	}
+
+	/**
+	 * Handle the aioRead() and aioWrite() system calls.
+	 *
+	 * Start moving count bytes between buffer and the file or stream referred
+	 * to by fileDescriptor, and return at once. The pages of the buffer are
+	 * pinned until the request completes, and a kernel I/O thread moves the
+	 * data straight between them and the file. For a disk file the transfer
+	 * starts at offset, leaving the file position alone, so several requests
+	 * on one file can be outstanding; an offset of -1 uses and advances the
+	 * file position instead.
+	 *
+	 * Pipe ends are refused: a read of an empty pipe or a write to a full one
+	 * would hold one of the kernel's few I/O threads until another process
+	 * got round to the pipe, stalling asynchronous I/O for everybody.
+	 *
+	 * Pinned frames cannot be evicted, so the pages one process's requests
+	 * may pin at once are limited to <tt>UserProcess.maxAioPages</tt>, a
+	 * quarter of physical memory by default, and the pages all requests may
+	 * pin to <tt>UserKernel.maxAioPages</tt>, half of it. A request that would
+	 * go over either limit is refused rather than left to pin every frame and
+	 * stall the page fault that needs one.
+	 *
+	 * Returns a request id for aioPoll() and aioWait(), or -1 if an error
+	 * occurred, the process already has too many requests outstanding, or the
+	 * buffer covers more pages than may be pinned.
+	 */
+	private int handleAsyncIO(int fileDescriptor, int buffer, int count,
+			int offset, boolean read) {
+		OpenFile openFile = fileDescriptors.get(fileDescriptor);
+		if (openFile == null || offset < -1 || !validBuffer(buffer, count)) {
+			Lib.debug(dbgProcess, "handleAsyncIO: invalid request.");
+			return -1;
+		}
+		if (Pipe.isEnd(openFile)) {
+			Lib.debug(dbgProcess, "handleAsyncIO: pipes cannot be used asynchronously.");
+			return -1;
+		}
+
+		aioLock.acquire();
+		if (aioRequests.size() >= maxAioRequests) {
+			aioLock.release();
+			Lib.debug(dbgProcess, "handleAsyncIO: too many requests.");
+			return -1;
+		}
+
+		final AsyncRequest request = new AsyncRequest(openFile, offset,
+				buffer, count, read);
+		if (aioPinnedPages + request.numPages > maxAioPages
+				|| !UserKernel.reserveAioPages(request.numPages)) {
+			aioLock.release();
+			Lib.debug(dbgProcess, "handleAsyncIO: too many pages pinned.");
+			return -1;
+		}
+		if (!request.pin()) {
+			UserKernel.releaseAioPages(request.numPages);
+			aioLock.release();
+			Lib.debug(dbgProcess, "handleAsyncIO: buffer cannot be pinned.");
+			return -1;
+		}
+		aioPinnedPages += request.numPages;
+		int id = nextAioId++;
+		aioRequests.put(id, request);
+		aioOutstanding++;
+		aioLock.release();
+
+		UserKernel.ioQueue.submit(new Runnable() {
+			public void run() {
+				request.run();
+			}
+		});
+		return id;
+	}
+
+	/**
+	 * Handle the aioPoll() system call.
+	 *
+	 * Return the result of request id, which is what read() or write() would
+	 * have returned, and forget the request. Return -2 if the request is still
+	 * in progress, or -1 if there is no such request.
+	 */
+	private int handleAioPoll(int id) {
+		aioLock.acquire();
+		AsyncRequest request = aioRequests.get(id);
+		int result = -1;
+		if (request != null) {
+			if (request.done) {
+				aioRequests.remove(id);
+				result = request.result;
+			} else {
+				result = aioPending;
+			}
+		}
+		aioLock.release();
+		return result;
+	}
+
+	/**
+	 * Handle the aioWait() system call.
+	 *
+	 * Block until request id completes, then return its result as aioPoll()
+	 * does, or -1 if there is no such request.
+	 */
+	private int handleAioWait(int id) {
+		aioLock.acquire();
+		AsyncRequest request = aioRequests.get(id);
+		int result = -1;
+		if (request != null) {
+			while (!request.done)
+				aioDone.sleep();
+			aioRequests.remove(id);
+			result = request.result;
+		}
+		aioLock.release();
+		return result;
+	}
+
+	/**
+	 * Wait until no asynchronous request of this process is still moving
+	 * data.
+	 */
+	private void waitForAsyncIO() {
+		aioLock.acquire();
+		while (aioOutstanding > 0)
+			aioDone.sleep();
+		aioLock.release();
+	}
+
+	/**
+	 * An asynchronous read or write. The buffer's frames are pinned when the
+	 * request is made, and an I/O thread moves the data and unpins them.
+	 */
+	private class AsyncRequest {
+		AsyncRequest(OpenFile file, int offset, int vaddr, int count,
+				boolean read) {
+			this.file = file;
+			this.offset = offset;
+			this.vaddr = vaddr;
+			this.count = count;
+			this.read = read;
+			numPages = count == 0 ? 0 : Processor.pageFromAddress(vaddr
+					+ count - 1) - Processor.pageFromAddress(vaddr) + 1;
+		}
+
+		/**
+		 * Pin every page of the buffer, recording the frames.
+		 *
+		 * @return <tt>true</tt> if all pages could be pinned.
+		 */
+		boolean pin() {
+			int firstVPN = Processor.pageFromAddress(vaddr);
+			ppns = new int[numPages];
+			for (int i = 0; i < ppns.length; i++) {
+				ppns[i] = pinPage(firstVPN + i, read);
+				if (ppns[i] < 0) {
+					while (--i >= 0)
+						unpinPage(ppns[i]);
+					return false;
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * Move the data, unpin the buffer and post the result. Runs on an I/O
+		 * thread.
+		 */
+		void run() {
+			byte[] memory = Machine.processor().getMemory();
+			int total = 0;
+			int moved = 0;
+			for (int i = 0; i < ppns.length && total < count; i++) {
+				int pageOffset = Processor.offsetFromAddress(vaddr + total);
+				int paddr = Processor.makeAddress(ppns[i], pageOffset);
+				int amount = Math.min(count - total, pageSize - pageOffset);
+				if (offset < 0)
+					moved = read ? file.read(memory, paddr, amount) : file.write(
+							memory, paddr, amount);
+				else
+					moved = read ? file.read(offset + total, memory, paddr, amount)
+							: file.write(offset + total, memory, paddr, amount);
+				if (moved < 0)
+					break;
+				total += moved;
+				if (moved < amount)
+					break;
+			}
+			for (int ppn : ppns)
+				unpinPage(ppn);
+			UserKernel.releaseAioPages(numPages);
+			if (!read)
+				fileWritten(file);
+
+			aioLock.acquire();
+			aioPinnedPages -= numPages;
+			if ((moved < 0 && total == 0) || (!read && total != count))
+				result = -1;
+			else
+				result = total;
+			done = true;
+			aioOutstanding--;
+			aioDone.wakeAll();
+			aioLock.release();
+		}
+
+		private OpenFile file;
+
+		private int offset, vaddr, count;
+
+		private boolean read;
+
+		/** The number of pages the buffer touches. */
+		final int numPages;
+
+		private int[] ppns;
+
+		/** Set by the I/O thread once the result is posted. */
+		boolean done = false;
+
+		int result;
+	}
+
 	/**
 	 * Handle the unlink() system call.
 	 *
@@ -912,11 +1442,11 @@ public class UserProcess {
 			return -1;
 		}
 		int fileDescriptor = -1;
-		for (int i=2; i<fileDescriptors.length; i++) {
-			if (fileDescriptors[i] == null) {
+		for (int i=2; i<fileDescriptors.size(); i++) {
+			if (fileDescriptors.get(i) == null) {
 				continue;
 			}
-			if (fileDescriptors[i].getName().equals(fileName)) {
+			if (fileDescriptors.get(i).getName().equals(fileName)) {
 				fileDescriptor = i;
 			}
 		}
@@ -926,6 +1456,7 @@ public class UserProcess {
 		}
 		int isClosed = handleClose(fileDescriptor);
 		boolean isRemoved = ThreadedKernel.fileSystem.remove(fileName);
+		fileChanged(fileName);
 		if (isRemoved && isClosed==0) {
 			return 0;
 		} else {
@@ -980,9 +1511,7 @@ public class UserProcess {
 
 		// create child process
 		UserProcess child = new VMProcess();
-		// child is not exited so no exit status
-		children.put(child.pid, child);
-		child.parent = this;
+		adopt(child);
 		// try execute the child
 		if (!child.execute(filename, args)) {
 			System.out.println("Child execution unsuccessful");
@@ -1049,7 +1578,21 @@ public class UserProcess {
 	private static final int syscallHalt = 0, syscallExit = 1, syscallExec = 2,
 			syscallJoin = 3, syscallCreate = 4, syscallOpen = 5,
 			syscallRead = 6, syscallWrite = 7, syscallClose = 8,
-			syscallUnlink = 9;
+			syscallUnlink = 9, syscallReadv = 13, syscallWritev = 14,
+			syscallDup = 16, syscallDup2 = 17, syscallAioRead = 18,
+			syscallAioWrite = 19, syscallAioPoll = 20, syscallAioWait = 21,
+			syscallPipe = 22, syscallRingSetup = 24, syscallRingSubmit = 25;
+
+	/**
+	 * The syscalls that may be submitted through a ring. Those that create,
+	 * end or wait for processes, or need the caller's own thread, may not.
+	 */
+	private static final int[] ringSyscalls = { syscallCreate, syscallOpen,
+			syscallRead, syscallWrite, syscallClose, syscallUnlink,
+			syscallReadv, syscallWritev, syscallDup, syscallDup2 };
+
+	/** ringSetup() flag asking for a kernel thread to poll the ring. */
+	private static final int ringPoll = 1;
 
 	/**
 	 * Handle a syscall exception. Called by <tt>handleException()</tt>. The
@@ -1103,6 +1646,55 @@ public class UserProcess {
 	 * <td>9</td>
 	 * <td><tt>int  unlink(char *name);</tt></td>
 	 * </tr>
+	 * <tr>
+	 * <td>13</td>
+	 * <td><tt>int  readv(int fd, struct iovec *iov, int iovcnt);
+	 * 								</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>14</td>
+	 * <td><tt>int  writev(int fd, struct iovec *iov, int iovcnt);
+	 * 								</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>16</td>
+	 * <td><tt>int  dup(int fd);</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>17</td>
+	 * <td><tt>int  dup2(int fd, int newfd);</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>18</td>
+	 * <td><tt>int  aioRead(int fd, char *buffer, int size, int offset);
+	 * 								</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>19</td>
+	 * <td><tt>int  aioWrite(int fd, char *buffer, int size, int offset);
+	 * 								</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>20</td>
+	 * <td><tt>int  aioPoll(int id);</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>21</td>
+	 * <td><tt>int  aioWait(int id);</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>22</td>
+	 * <td><tt>int  pipe(int fds[2]);</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>24</td>
+	 * <td><tt>int  ringSetup(struct ring *ring, int entries, int flags);
+	 * 								</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>25</td>
+	 * <td><tt>int  ringSubmit(int count);</tt></td>
+	 * </tr>
 	 * </table>
 	 * 
 	 * @param syscall the syscall number.
@@ -1114,37 +1706,146 @@ public class UserProcess {
 	 */
 	public int handleSyscall(int syscall, int a0, int a1, int a2, int a3) {
 		Lib.debug(dbgProcess, "handling syscall");
-		switch (syscall) {
-		case syscallHalt:
-			return handleHalt();
-		case syscallExit:
-			return handleExit(a0);
-		/** PART 1 **/
-		// TODO
-		case syscallCreate:
-			return handleCreat(a0);
-		case syscallOpen:
-			return handleOpen(a0);
-		case syscallRead:
-			return handleRead(a0,a1,a2);
-		case syscallWrite:
-			return handleWrite(a0,a1,a2);
-		case syscallClose:
-			return handleClose(a0);
-		case syscallUnlink:
-			return handleUnlink(a0);
-		/** PART 3 **/
-		// TODO
-		case syscallExec:
-			return handleExec(a0,a1,a2);
-		case syscallJoin:
-			return handleJoin(a0,a1);
+		return getSyscallTable().dispatch(this, syscall, a0, a1, a2, a3);
+	}
 
-		default:
-			Lib.debug(dbgProcess, "Unknown syscall " + syscall);
-			Lib.assertNotReached("Unknown system call!");
-		}
-		return 0;
+	/**
+	 * Return the syscalls this process handles. Subclasses that handle more
+	 * return a table of their own, built from a copy of this one.
+	 */
+	protected SyscallTable getSyscallTable() {
+		return syscalls;
+	}
+
+	/** The syscalls every user process handles. */
+	protected static final SyscallTable syscalls = new SyscallTable();
+
+	static {
+		syscalls.register(syscallHalt, "halt", new SyscallTable.Handler() {
+			public int handle(UserProcess process, int a0, int a1, int a2, int a3) {
+				return process.handleHalt();
+			}
+		});
+
+		syscalls.register(syscallExit, "exit", new SyscallTable.Handler() {
+			public int handle(UserProcess process, int a0, int a1, int a2, int a3) {
+				return process.handleExit(a0);
+			}
+		});
+
+		syscalls.register(syscallExec, "exec", new SyscallTable.Handler() {
+			public int handle(UserProcess process, int a0, int a1, int a2, int a3) {
+				return process.handleExec(a0, a1, a2);
+			}
+		});
+
+		syscalls.register(syscallJoin, "join", new SyscallTable.Handler() {
+			public int handle(UserProcess process, int a0, int a1, int a2, int a3) {
+				return process.handleJoin(a0, a1);
+			}
+		});
+
+		syscalls.register(syscallCreate, "creat", new SyscallTable.Handler() {
+			public int handle(UserProcess process, int a0, int a1, int a2, int a3) {
+				return process.handleCreat(a0);
+			}
+		});
+
+		syscalls.register(syscallOpen, "open", new SyscallTable.Handler() {
+			public int handle(UserProcess process, int a0, int a1, int a2, int a3) {
+				return process.handleOpen(a0);
+			}
+		});
+
+		syscalls.register(syscallRead, "read", new SyscallTable.Handler() {
+			public int handle(UserProcess process, int a0, int a1, int a2, int a3) {
+				return process.handleRead(a0, a1, a2);
+			}
+		});
+
+		syscalls.register(syscallWrite, "write", new SyscallTable.Handler() {
+			public int handle(UserProcess process, int a0, int a1, int a2, int a3) {
+				return process.handleWrite(a0, a1, a2);
+			}
+		});
+
+		syscalls.register(syscallClose, "close", new SyscallTable.Handler() {
+			public int handle(UserProcess process, int a0, int a1, int a2, int a3) {
+				return process.handleClose(a0);
+			}
+		});
+
+		syscalls.register(syscallUnlink, "unlink", new SyscallTable.Handler() {
+			public int handle(UserProcess process, int a0, int a1, int a2, int a3) {
+				return process.handleUnlink(a0);
+			}
+		});
+
+		syscalls.register(syscallReadv, "readv", new SyscallTable.Handler() {
+			public int handle(UserProcess process, int a0, int a1, int a2, int a3) {
+				return process.handleVectorIO(a0, a1, a2, true);
+			}
+		});
+
+		syscalls.register(syscallWritev, "writev", new SyscallTable.Handler() {
+			public int handle(UserProcess process, int a0, int a1, int a2, int a3) {
+				return process.handleVectorIO(a0, a1, a2, false);
+			}
+		});
+
+		syscalls.register(syscallDup, "dup", new SyscallTable.Handler() {
+			public int handle(UserProcess process, int a0, int a1, int a2, int a3) {
+				return process.handleDup(a0);
+			}
+		});
+
+		syscalls.register(syscallDup2, "dup2", new SyscallTable.Handler() {
+			public int handle(UserProcess process, int a0, int a1, int a2, int a3) {
+				return process.handleDup2(a0, a1);
+			}
+		});
+
+		syscalls.register(syscallAioRead, "aioRead", new SyscallTable.Handler() {
+			public int handle(UserProcess process, int a0, int a1, int a2, int a3) {
+				return process.handleAsyncIO(a0, a1, a2, a3, true);
+			}
+		});
+
+		syscalls.register(syscallAioWrite, "aioWrite", new SyscallTable.Handler() {
+			public int handle(UserProcess process, int a0, int a1, int a2, int a3) {
+				return process.handleAsyncIO(a0, a1, a2, a3, false);
+			}
+		});
+
+		syscalls.register(syscallAioPoll, "aioPoll", new SyscallTable.Handler() {
+			public int handle(UserProcess process, int a0, int a1, int a2, int a3) {
+				return process.handleAioPoll(a0);
+			}
+		});
+
+		syscalls.register(syscallAioWait, "aioWait", new SyscallTable.Handler() {
+			public int handle(UserProcess process, int a0, int a1, int a2, int a3) {
+				return process.handleAioWait(a0);
+			}
+		});
+
+		syscalls.register(syscallPipe, "pipe", new SyscallTable.Handler() {
+			public int handle(UserProcess process, int a0, int a1, int a2, int a3) {
+				return process.handlePipe(a0);
+			}
+		});
+
+		syscalls.register(syscallRingSetup, "ringSetup", new SyscallTable.Handler() {
+			public int handle(UserProcess process, int a0, int a1, int a2, int a3) {
+				return process.handleRingSetup(a0, a1, a2);
+			}
+		});
+
+		syscalls.register(syscallRingSubmit, "ringSubmit", new SyscallTable.Handler() {
+			public int handle(UserProcess process, int a0, int a1, int a2, int a3) {
+				return process.handleRingSubmit(a0);
+			}
+		});
 	}
 
 	/**
@@ -1178,9 +1879,143 @@ public class UserProcess {
 		}
 	}
 
+	/**
+	 * Give back the pid of a process made for a self-test. The process never
+	 * runs, so the first real process still gets pid 0. Test processes must
+	 * give their pids back in the reverse of the order they were made in.
+	 */
+	protected void releaseTestPid() {
+		UserKernel.pidCounterMutex.acquire();
+		Lib.assertTrue(pid == UserKernel.pidCounter - 1);
+		UserKernel.pidCounter--;
+		UserKernel.pidCounterMutex.release();
+	}
+
+	/**
+	 * Test that moving data between a process's memory and files works.
+	 * Uses a process that is never started, with a few pages of its own.
+	 */
+	public static void selfTest() {
+		final UserProcess process = new UserProcess();
+		process.releaseTestPid();
+
+		int[] frames = new int[3];
+		UserKernel.pagesAvailableMutex.acquire();
+		Lib.assertTrue(UserKernel.pagesAvailable.allocate(frames, 3));
+		UserKernel.pagesAvailableMutex.release();
+		process.pageTable = new TranslationEntry[3];
+		for (int i = 0; i < 3; i++)
+			process.pageTable[i] = new TranslationEntry(i, frames[i], true,
+					false, false, false);
+
+		// two records, each straddling a page boundary
+		final int recordSize = 600;
+		final int[] records = { pageSize - 300, 2 * pageSize - 300 };
+		byte[] data = new byte[recordSize];
+		for (int w = 0; w < records.length; w++) {
+			Arrays.fill(data, (byte) ('a' + w));
+			Lib.assertTrue(process.writeVirtualMemory(records[w], data) == recordSize);
+		}
+
+		// writers of whole records into a pipe that holds one never split
+		// each other's records
+		Pipe pipe = new Pipe(recordSize);
+		OpenFile in = pipe.openForReading();
+		KThread[] writers = new KThread[records.length];
+		for (int w = 0; w < writers.length; w++) {
+			final int vaddr = records[w];
+			final OpenFile end = pipe.openForWriting();
+			writers[w] = new KThread(new Runnable() {
+				public void run() {
+					for (int i = 0; i < 4; i++) {
+						Lib.assertTrue(process.transferDirect(end, -1, vaddr,
+								recordSize, false) == recordSize);
+					}
+					end.close();
+				}
+			}).setName("pipe writer " + w);
+			writers[w].fork();
+		}
+		int total = 0, n;
+		while ((n = in.read(data, 0, recordSize)) > 0) {
+			Lib.assertTrue(n == recordSize);
+			for (int i = 1; i < n; i++)
+				Lib.assertTrue(data[i] == data[0]);
+			total += n;
+		}
+		Lib.assertTrue(total == 8 * recordSize);
+		for (KThread writer : writers)
+			writer.join();
+
+		// a read across a page boundary takes what the pipe has
+		OpenFile out = pipe.openForWriting();
+		Arrays.fill(data, (byte) 'z');
+		Lib.assertTrue(out.write(data, 0, 400) == 400);
+		Lib.assertTrue(process.transferDirect(in, -1, records[0], recordSize,
+				true) == 400);
+		Lib.assertTrue(process.readVirtualMemory(records[0], data) == recordSize);
+		for (int i = 0; i < recordSize; i++)
+			Lib.assertTrue(data[i] == (i < 400 ? 'z' : 'a'));
+		out.close();
+		in.close();
+
+		// a page that cannot be used once others have moved data makes the
+		// transfer short, not failed, and the file position stays right
+		OpenFile file = new ArrayFile(new byte[3 * pageSize]);
+		process.pageTable[2].valid = false;
+		Lib.assertTrue(process.transferDirect(file, -1, pageSize,
+				2 * pageSize, true) == pageSize);
+		Lib.assertTrue(file.tell() == pageSize);
+		Lib.assertTrue(process.transferDirect(file, -1, 2 * pageSize,
+				pageSize, true) == -1);
+		process.pageTable[2].valid = true;
+
+		// a ring of one slot whose completion lies on a read-only page: the
+		// entry still runs once, and sqHead records it
+		int ringAddress = pageSize - 40;
+		byte[] ringBytes = new byte[40];
+		Lib.bytesFromInt(ringBytes, 4, 1);
+		Lib.bytesFromInt(ringBytes, 16, syscallClose);
+		Lib.bytesFromInt(ringBytes, 20, 99);
+		Lib.bytesFromInt(ringBytes, 36, 7);
+		Lib.assertTrue(process.writeVirtualMemory(ringAddress, ringBytes) == 40);
+		process.pageTable[1].readOnly = true;
+		SyscallRing ring = new SyscallRing(process, ringAddress, 1,
+				ringSyscalls);
+		Lib.assertTrue(ring.submit(1) == -1);
+		Lib.assertTrue(process.readVirtualMemory(ringAddress, ringBytes) == 40);
+		Lib.assertTrue(Lib.bytesToInt(ringBytes, 0) == 1
+				&& Lib.bytesToInt(ringBytes, 12) == 0);
+		Lib.assertTrue(ring.submit(1) == 0);
+
+		// once the completion can be written, the next entry completes
+		process.pageTable[1].readOnly = false;
+		Lib.bytesFromInt(ringBytes, 4, 2);
+		Lib.assertTrue(process.writeVirtualMemory(ringAddress, ringBytes) == 40);
+		Lib.assertTrue(ring.submit(1) == 1);
+		byte[] completion = new byte[8];
+		Lib.assertTrue(process.readVirtualMemory(pageSize, completion) == 8);
+		Lib.assertTrue(Lib.bytesToInt(completion, 0) == 7
+				&& Lib.bytesToInt(completion, 4) == -1);
+		ring.stop();
+
+		UserKernel.pagesAvailableMutex.acquire();
+		UserKernel.pagesAvailable.free(frames, 3);
+		UserKernel.pagesAvailableMutex.release();
+	}
+
 	/** The program being run by this process. */
 	protected Coff coff;
 
+	/** The name <tt>coff</tt> was loaded from. */
+	protected String executableName;
+
+	/**
+	 * If set, the user registers <tt>initRegisters()</tt> loads instead of
+	 * starting the program at its entry point.
+	 */
+	protected int[] initialRegisters = null;
+
 	/** This process's page table. */
 	protected TranslationEntry[] pageTable;
 
@@ -1194,7 +2029,37 @@ public class UserProcess {
 	protected UThread thread;
 
 	/** The array contains all fileDescriptor. */
-	protected OpenFile[] fileDescriptors;
+	protected FileDescriptorTable fileDescriptors;
+
+	/** The ring set up by <tt>ringSetup()</tt>, if any. */
+	private SyscallRing ring = null;
+
+	/** Result of aioPoll() for a request still in progress. */
+	private static final int aioPending = -2;
+
+	/** Most asynchronous requests one process may have unclaimed. */
+	private static final int maxAioRequests = Config.getInteger(
+			"UserProcess.maxAioRequests", 16);
+
+	/** Asynchronous requests not yet claimed by aioPoll() or aioWait(). */
+	private HashMap<Integer, AsyncRequest> aioRequests = new HashMap<Integer, AsyncRequest>();
+
+	private int nextAioId = 0;
+
+	/** Requests whose I/O thread has not finished with the buffer. */
+	private int aioOutstanding = 0;
+
+	/** Most pages this process's asynchronous requests may pin at once. */
+	private static final int maxAioPages = Config.getInteger(
+			"UserProcess.maxAioPages", Math.max(1, Machine.processor()
+					.getNumPhysPages() / 4));
+
+	/** Pages pinned by requests whose I/O thread has not finished. */
+	private int aioPinnedPages = 0;
+
+	private Lock aioLock = new Lock();
+
+	private Condition2 aioDone = new Condition2(aioLock);
 
 	protected int pid;
     
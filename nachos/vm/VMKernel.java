@@ -7,6 +7,7 @@ import nachos.vm.*;
 
 import javax.swing.*;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.LinkedList;
 
@@ -29,6 +30,8 @@ public class VMKernel extends UserKernel {
 		pagesAvailableMutex = new Lock();
 		swapLock = new Lock();
 		swapPages = new LinkedList<>();
+		swapRefCounts = new HashMap<>();
+		sharedPages = new HashMap<>();
 		swapFile = ThreadedKernel.fileSystem.open("swapfile", true);
 		spnTotal = 0;
 		pinLock = new Lock();
@@ -41,6 +44,107 @@ public class VMKernel extends UserKernel {
 		for(int i = 0; i < Machine.processor().getNumPhysPages(); i++){
 			manager[i] = new pageManager(null, null, false);
 		}
+
+		zeroedPages = new FrameAllocator(
+				Machine.processor().getNumPhysPages(), false);
+		zeroLowWater = Config.getInteger("VMKernel.zeroLowWater", 1);
+		zeroHighWater = Config.getInteger("VMKernel.zeroHighWater", 4);
+		Lib.assertTrue(zeroLowWater >= 0 && zeroHighWater >= zeroLowWater);
+		zeroNeeded = new Condition(pagesAvailableMutex);
+		KThread zeroer = new KThread(new Runnable() {
+			public void run() {
+				zeroFrames();
+			}
+		}).setName("page zeroer");
+		// only the priority schedulers honour this; under the others the
+		// zeroer just yields after every frame
+		boolean intStatus = Machine.interrupt().disable();
+		ThreadedKernel.scheduler.setPriority(zeroer, 0);
+		Machine.interrupt().restore(intStatus);
+		zeroer.fork();
+	}
+
+	/**
+	 * Take a frame for a page fault, preferring a pre-zeroed one if
+	 * <i>zeroFill</i> is set and an unzeroed one otherwise, so zeroed frames
+	 * are kept for the faults that want them. Wakes the zeroer when the pool
+	 * falls below its low watermark. The caller must hold
+	 * <tt>pagesAvailableMutex</tt>.
+	 *
+	 * @return the frame, or -1 if there are no free frames. Whether the frame
+	 * is zeroed can be told from <tt>manager[ppn].isZeroed()</tt>.
+	 */
+	static int takeFrame(boolean zeroFill) {
+		int ppn;
+		if (zeroFill && zeroedPages.numFree() > 0) {
+			ppn = zeroedPages.allocate();
+		} else if (pagesAvailable.numFree() > 0) {
+			ppn = pagesAvailable.allocate();
+		} else if (zeroedPages.numFree() > 0) {
+			ppn = zeroedPages.allocate();
+		} else {
+			return -1;
+		}
+		if (zeroedPages.numFree() < zeroLowWater) {
+			zeroNeeded.wake();
+		}
+		return ppn;
+	}
+
+	/**
+	 * The body of the page zeroer: while the pool is below its high
+	 * watermark and there are free frames, zero one at a time, yielding in
+	 * between so faulting processes come first. A frame being zeroed is in
+	 * neither pool, so it is pinned meanwhile to keep the clock off it.
+	 */
+	private static void zeroFrames() {
+		byte[] memory = Machine.processor().getMemory();
+		while (true) {
+			pagesAvailableMutex.acquire();
+			while (zeroedPages.numFree() >= zeroHighWater
+					|| pagesAvailable.numFree() == 0) {
+				zeroNeeded.sleep();
+			}
+			int ppn = pagesAvailable.allocate();
+			pinFrame(ppn);
+			pagesAvailableMutex.release();
+
+			int paddr = Processor.makeAddress(ppn, 0);
+			Arrays.fill(memory, paddr, paddr + Processor.pageSize, (byte) 0);
+
+			unpinFrame(ppn);
+			pagesAvailableMutex.acquire();
+			manager[ppn].setZeroed();
+			zeroedPages.free(ppn);
+			pagesAvailableMutex.release();
+			KThread.yield();
+		}
+	}
+
+	/**
+	 * Pin frame <i>ppn</i> so the clock passes it by. Pins nest, so a frame
+	 * used by several transfers at once stays pinned until the last one is
+	 * done; <tt>numPagesPinned</tt> counts pinned frames, not pins.
+	 */
+	static void pinFrame(int ppn) {
+		pinLock.acquire();
+		if (manager[ppn].pin()) {
+			numPagesPinned++;
+		}
+		pinLock.release();
+	}
+
+	/**
+	 * Release one pin of frame <i>ppn</i>, waking a process waiting for a
+	 * frame to evict if that was the last.
+	 */
+	static void unpinFrame(int ppn) {
+		pinLock.acquire();
+		if (manager[ppn].unpin()) {
+			numPagesPinned--;
+			pinCV.wake();
+		}
+		pinLock.release();
 	}
 
 	/**
@@ -48,6 +152,14 @@ public class VMKernel extends UserKernel {
 	 */
 	public void selfTest() {
 		super.selfTest();
+
+		// pins nest, and only the first and last change the frame's state
+		pageManager frame = new pageManager(null, null, false);
+		Lib.assertTrue(frame.pin() && !frame.pin());
+		Lib.assertTrue(!frame.unpin() && frame.getPinStatus());
+		Lib.assertTrue(frame.unpin() && !frame.getPinStatus());
+
+		VMProcess.selfTest();
 	}
 
 	/**
@@ -57,6 +169,22 @@ public class VMKernel extends UserKernel {
 		super.run();
 	}
 
+	/**
+	 * Also stop sharing the pages of the named executable with processes
+	 * that start it from now on.
+	 */
+	public void executableChanged(String name) {
+		super.executableChanged(name);
+		managerLock.acquire();
+		// keys are the executable name, a colon and the page number
+		for (String key : new ArrayList<>(sharedPages.keySet())) {
+			if (key.startsWith(name + ":")) {
+				forgetSharedPage(sharedPages.get(key));
+			}
+		}
+		managerLock.release();
+	}
+
 	/**
 	 * Terminate this kernel. Never returns.
 	 */
@@ -87,6 +215,22 @@ public class VMKernel extends UserKernel {
 
 	static OpenFile swapFile;
 
+	/**
+	 * Free frames that are already zeroed. They are still free, just taken
+	 * last by faults that will overwrite them. Guarded by
+	 * <tt>pagesAvailableMutex</tt>.
+	 */
+	static FrameAllocator zeroedPages;
+
+	/** The zeroer refills the pool when it drops below this size... */
+	static int zeroLowWater;
+
+	/** ...and stops once it reaches this size. */
+	static int zeroHighWater;
+
+	/** Signalled when the pool drops below its low watermark. */
+	static Condition zeroNeeded;
+
 	static int spnTotal;
 
 	static LinkedList<Integer> swapPages;
@@ -94,43 +238,136 @@ public class VMKernel extends UserKernel {
 	static Lock swapLock;
 
 	/**
-	 * Page manager class that keeps the translation entry,
-	 * owner process and pin status for all physical pages in memory.
+	 * Number of processes sharing each swap slot, for slots in use. A slot
+	 * goes back to <tt>swapPages</tt> when its count drops to zero.
+	 */
+	static HashMap<Integer, Integer> swapRefCounts;
+
+	/**
+	 * Page manager class that keeps the translation entries,
+	 * owner processes and pin count for all physical pages in memory.
+	 * A frame shared copy-on-write after fork() has one entry per process
+	 * mapping it; the number of entries is the frame's reference count.
 	 * Inspired by piazza post
 	 */
 	static class pageManager {
-		private TranslationEntry translationEntry;
-		private VMProcess process;
-		private boolean isPinned;
+		private ArrayList<TranslationEntry> entries = new ArrayList<>();
+		private ArrayList<VMProcess> processes = new ArrayList<>();
+		private int pinCount;
+		private String sharedKey = null;
+		private boolean zeroed = false;
 
 		public pageManager(TranslationEntry entry, VMProcess process, boolean pin) {
-			translationEntry = entry;
-			process = process;
-			isPinned = pin;
+			if (entry != null) {
+				map(entry, process);
+			}
+			pinCount = pin ? 1 : 0;
 		}
 
+		/** Return the entry of the first process mapping this frame. */
 		public TranslationEntry getEntry() {
-			return this.translationEntry;
+			return entries.isEmpty() ? null : entries.get(0);
 		}
 
-		public void setEntry(TranslationEntry entry) {
-			this.translationEntry = entry;
+		/** Return the first process mapping this frame. */
+		public VMProcess getProcess() {
+			return processes.isEmpty() ? null : processes.get(0);
 		}
 
-		public VMProcess getProcess() {
-			return this.process;
+		/** Make <i>process</i> the only owner of this frame. */
+		public void map(TranslationEntry entry, VMProcess process) {
+			entries.clear();
+			processes.clear();
+			sharedKey = null;
+			zeroed = false;
+			share(entry, process);
+		}
+
+		/** Return the <tt>sharedPages</tt> key of this frame, or null. */
+		public String getSharedKey() {
+			return sharedKey;
+		}
+
+		public void setSharedKey(String key) {
+			sharedKey = key;
+		}
+
+		/**
+		 * Return true if this frame was zeroed by the page zeroer and has
+		 * not been mapped since.
+		 */
+		public boolean isZeroed() {
+			return zeroed;
+		}
+
+		public void setZeroed() {
+			zeroed = true;
+		}
+
+		/** Add <i>process</i> as another owner of this frame. */
+		public void share(TranslationEntry entry, VMProcess process) {
+			entries.add(entry);
+			processes.add(process);
+		}
+
+		/** Remove <i>process</i> from the owners of this frame. */
+		public void unshare(VMProcess process) {
+			int i = processes.indexOf(process);
+			if (i >= 0) {
+				entries.remove(i);
+				processes.remove(i);
+			}
+		}
+
+		public int getRefCount() {
+			return entries.size();
+		}
+
+		public ArrayList<TranslationEntry> getEntries() {
+			return entries;
+		}
+
+		public ArrayList<VMProcess> getProcesses() {
+			return processes;
+		}
+
+		/** Return true if any owner used this frame since the last clear. */
+		public boolean isUsed() {
+			for (TranslationEntry entry : entries) {
+				if (entry.used) {
+					return true;
+				}
+			}
+			return false;
 		}
 
-		public void setProcess(VMProcess process) {
-			this.process = process;
+		public void clearUsed() {
+			for (TranslationEntry entry : entries) {
+				entry.used = false;
+			}
 		}
 
 		public boolean getPinStatus() {
-			return this.isPinned;
+			return pinCount > 0;
+		}
+
+		/**
+		 * Pin this frame once more.
+		 *
+		 * @return true if it was not pinned before.
+		 */
+		public boolean pin() {
+			return pinCount++ == 0;
 		}
 
-		public void setPinStatus(boolean pin) {
-			this.isPinned = pin;
+		/**
+		 * Release one pin of this frame.
+		 *
+		 * @return true if that was the last.
+		 */
+		public boolean unpin() {
+			Lib.assertTrue(pinCount > 0);
+			return --pinCount == 0;
 		}
 	}
 
@@ -140,8 +377,50 @@ public class VMKernel extends UserKernel {
 
 	static Lock pinLock;
 
+	/** The number of frames with at least one pin. */
 	static int numPagesPinned;
 
 	static Lock managerLock;
 
+	/**
+	 * Frames holding read-only COFF pages, by executable name and virtual
+	 * page number, so that every process running the same program maps the
+	 * same frame. Guarded by <tt>managerLock</tt>.
+	 */
+	static HashMap<String, Integer> sharedPages;
+
+	/**
+	 * Return the <tt>sharedPages</tt> key for page <i>vpn</i> of
+	 * <i>executable</i>.
+	 */
+	static String sharedPageKey(String executable, int vpn) {
+		return executable + ":" + vpn;
+	}
+
+	/**
+	 * Stop sharing frame <i>ppn</i> with processes that fault on its page
+	 * later. The caller must hold <tt>managerLock</tt>.
+	 */
+	static void forgetSharedPage(int ppn) {
+		String key = manager[ppn].getSharedKey();
+		if (key != null) {
+			sharedPages.remove(key);
+			manager[ppn].setSharedKey(null);
+		}
+	}
+
+	/**
+	 * Drop one reference to swap slot <i>spn</i>, freeing it if it was the
+	 * last. The caller must hold <tt>swapLock</tt>.
+	 */
+	static void releaseSwap(int spn) {
+		int count = swapRefCounts.get(spn) - 1;
+		if (count > 0) {
+			swapRefCounts.put(spn, count);
+		} else {
+			swapRefCounts.remove(spn);
+			swapPages.add(spn);
+		}
+	}
+
 }
@@ -7,6 +7,8 @@ import nachos.vm.*;
 
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
 
 /**
  * A <tt>UserProcess</tt> that supports demand-paging.
@@ -56,12 +58,424 @@ public class VMProcess extends UserProcess {
 	}
 
 	/**
-	 * Release any resources allocated by <tt>loadSections()</tt>.
+	 * Release any resources allocated by <tt>loadSections()</tt>. Dirty pages
+	 * of mapped files are written back first.
 	 */
 	protected void unloadSections() {
+		for (Mapping mapping : mappings)
+			flushMapping(mapping, false);
+		mappings.clear();
+
+		// this process owns none of its frames from now on; frames still
+		// shared with another process stay with it, the rest are freed by
+		// super.unloadSections() with no owner left for the clock to evict
+		VMKernel.managerLock.acquire();
+		for (int vpn = 0; vpn < pageTable.length; vpn++) {
+			TranslationEntry entry = pageTable[vpn];
+			if (entry == null || !entry.valid) {
+				continue;
+			}
+			VMKernel.pageManager frame = VMKernel.manager[entry.ppn];
+			if (frame.getRefCount() > 1) {
+				frame.unshare(this);
+				pageTable[vpn] = null;
+			} else {
+				// the frame is about to be freed, so it can no longer be shared
+				VMKernel.forgetSharedPage(entry.ppn);
+				frame.unshare(this);
+			}
+		}
+		VMKernel.managerLock.release();
+
+		VMKernel.swapLock.acquire();
+		for (int spn : vpnSpnMap.values())
+			VMKernel.releaseSwap(spn);
+		vpnSpnMap.clear();
+		VMKernel.swapLock.release();
+
 		super.unloadSections();
 	}
 
+	private static final int syscallRead = 6, syscallWrite = 7,
+			syscallClose = 8, syscallMmap = 10, syscallReadv = 13,
+			syscallWritev = 14, syscallMunmap = 15, syscallFork = 23;
+
+	protected SyscallTable getSyscallTable() {
+		return syscalls;
+	}
+
+	/**
+	 * The syscalls of a user process, plus these:
+	 * 
+	 * <table>
+	 * <tr>
+	 * <td>syscall#</td>
+	 * <td>syscall prototype</td>
+	 * </tr>
+	 * <tr>
+	 * <td>10</td>
+	 * <td><tt>int  mmap(int fd, char *address);</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>15</td>
+	 * <td><tt>int  munmap(char *address);</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>23</td>
+	 * <td><tt>int  fork();</tt></td>
+	 * </tr>
+	 * </table>
+	 * 
+	 * Reads and writes on a mapped file descriptor fail, and closing it removes
+	 * the mapping.
+	 */
+	protected static final SyscallTable syscalls = new SyscallTable(
+			UserProcess.syscalls);
+
+	static {
+		syscalls.register(syscallMmap, "mmap", new SyscallTable.Handler() {
+			public int handle(UserProcess process, int a0, int a1, int a2, int a3) {
+				return ((VMProcess) process).handleMmap(a0, a1);
+			}
+		});
+
+		syscalls.register(syscallMunmap, "munmap", new SyscallTable.Handler() {
+			public int handle(UserProcess process, int a0, int a1, int a2, int a3) {
+				return ((VMProcess) process).handleMunmap(a0);
+			}
+		});
+
+		syscalls.register(syscallFork, "fork", new SyscallTable.Handler() {
+			public int handle(UserProcess process, int a0, int a1, int a2, int a3) {
+				return ((VMProcess) process).handleFork();
+			}
+		});
+
+		String[] names = { "read", "write", "readv", "writev" };
+		int[] fileIO = { syscallRead, syscallWrite, syscallReadv, syscallWritev };
+		for (int i = 0; i < fileIO.length; i++) {
+			final SyscallTable.Handler handler = syscalls.get(fileIO[i]);
+			syscalls.register(fileIO[i], names[i], new SyscallTable.Handler() {
+				public int handle(UserProcess process, int a0, int a1, int a2, int a3) {
+					if (((VMProcess) process).findMapping(a0) != null) {
+						Lib.debug(dbgVM, "I/O on mapped file descriptor " + a0);
+						return -1;
+					}
+					return handler.handle(process, a0, a1, a2, a3);
+				}
+			});
+		}
+
+		final SyscallTable.Handler close = syscalls.get(syscallClose);
+		syscalls.register(syscallClose, "close", new SyscallTable.Handler() {
+			public int handle(UserProcess process, int a0, int a1, int a2, int a3) {
+				VMProcess vmProcess = (VMProcess) process;
+				Mapping mapping = vmProcess.findMapping(a0);
+				if (mapping != null)
+					vmProcess.unmap(mapping);
+				return close.handle(process, a0, a1, a2, a3);
+			}
+		});
+	}
+
+	/**
+	 * Handle the mmap() system call.
+	 *
+	 * Map the file open at fileDescriptor at the page-aligned address, which
+	 * must lie above the program and its stack and not overlap another
+	 * mapping. No page is read until the process touches it.
+	 *
+	 * Returns the length of the file, or -1 if an error occurred.
+	 */
+	private int handleMmap(int fileDescriptor, int address) {
+		OpenFile file = fileDescriptors.get(fileDescriptor);
+		if (file == null || findMapping(fileDescriptor) != null) {
+			Lib.debug(dbgVM, "handleMmap: bad file descriptor " + fileDescriptor);
+			return -1;
+		}
+		int length = file.length();
+		if (length < 0 || address < 0
+				|| Processor.offsetFromAddress(address) != 0) {
+			Lib.debug(dbgVM, "handleMmap: cannot map " + file.getName()
+					+ " at " + address);
+			return -1;
+		}
+
+		int firstVPN = Processor.pageFromAddress(address);
+		int mappedPages = (length + pageSize - 1) / pageSize;
+		if (firstVPN < numPages
+				|| (long) firstVPN + mappedPages > maxVirtualPages) {
+			Lib.debug(dbgVM, "handleMmap: address " + address + " out of range");
+			return -1;
+		}
+		for (Mapping other : mappings) {
+			if (firstVPN < other.firstVPN + other.numPages
+					&& other.firstVPN < firstVPN + mappedPages) {
+				Lib.debug(dbgVM, "handleMmap: overlaps another mapping");
+				return -1;
+			}
+		}
+
+		// grow the page table to cover the mapping
+		if (firstVPN + mappedPages > pageTable.length) {
+			TranslationEntry[] grown = new TranslationEntry[firstVPN
+					+ mappedPages];
+			System.arraycopy(pageTable, 0, grown, 0, pageTable.length);
+			pageTable = grown;
+			Machine.processor().setPageTable(pageTable);
+		}
+		for (int i = 0; i < mappedPages; i++)
+			pageTable[firstVPN + i] = new TranslationEntry(firstVPN + i, 0,
+					false, false, false, false);
+
+		// pages written through the mapping reach the file at any time
+		fileChanged(file.getName());
+		mappings.add(new Mapping(fileDescriptor, file, firstVPN, mappedPages,
+				length));
+		return length;
+	}
+
+	/**
+	 * Handle the fork() system call.
+	 *
+	 * Create a child that is a copy of this process and runs from the
+	 * instruction after the fork() call, where fork() returns 0 to it. No
+	 * memory is copied: the child maps every resident frame of the parent and
+	 * the pages are made read-only in both, so the first write to one by
+	 * either process copies it. Pages out in swap share the swap slot, and
+	 * pages never loaded are loaded by each process as usual. Mapped files
+	 * are not inherited.
+	 *
+	 * Neither are open files: the child gets a fresh descriptor table with
+	 * just the console, except that a pipe on the parent's stdin or stdout
+	 * is handed down by <tt>adopt()</tt>. Descriptor reference counts are
+	 * kept per table, so sharing other files between the two tables would
+	 * let either process close them under the other.
+	 *
+	 * Returns the child's pid, or -1 if an error occurred.
+	 */
+	private int handleFork() {
+		VMProcess child = (VMProcess) UserProcess.newUserProcess();
+		child.coff = UserKernel.imageCache.open(executableName);
+		if (child.coff == null) {
+			return -1;
+		}
+		child.executableName = executableName;
+		child.numPages = numPages;
+		shareAddressSpace(child);
+
+		// the child resumes after the syscall, seeing a return value of 0
+		Processor processor = Machine.processor();
+		child.initialRegisters = new int[Processor.numUserRegisters];
+		for (int i = 0; i < Processor.numUserRegisters; i++) {
+			child.initialRegisters[i] = processor.readRegister(i);
+		}
+		child.initialRegisters[Processor.regV0] = 0;
+		child.initialRegisters[Processor.regPC] = processor.readRegister(Processor.regNextPC);
+		child.initialRegisters[Processor.regNextPC] = processor.readRegister(Processor.regNextPC) + 4;
+
+		adopt(child);
+		child.thread = new UThread(child);
+		child.start(executableName);
+		return child.pid;
+	}
+
+	/**
+	 * Give <i>child</i> a page table that shares this process's memory, as
+	 * described for <tt>handleFork()</tt>. Resident pages become
+	 * copy-on-write in both processes, and swapped-out pages share their
+	 * swap slot.
+	 */
+	private void shareAddressSpace(VMProcess child) {
+		child.pageTable = new TranslationEntry[pageTable.length];
+		VMKernel.managerLock.acquire();
+		VMKernel.swapLock.acquire();
+		for (int vpn = 0; vpn < pageTable.length; vpn++) {
+			TranslationEntry entry = pageTable[vpn];
+			if (entry == null || mappingFor(vpn) != null) {
+				continue;
+			}
+			if (entry.valid) {
+				if (!entry.readOnly || cowPages.contains(vpn)) {
+					entry.readOnly = true;
+					cowPages.add(vpn);
+					child.cowPages.add(vpn);
+				}
+				TranslationEntry shared = new TranslationEntry(vpn, entry.ppn, true, true, entry.used, entry.dirty);
+				child.pageTable[vpn] = shared;
+				VMKernel.manager[entry.ppn].share(shared, child);
+			} else {
+				child.pageTable[vpn] = new TranslationEntry(vpn, entry.ppn, false, entry.readOnly, false, entry.dirty);
+				Integer spn = vpnSpnMap.get(vpn);
+				if (entry.dirty && spn != null) {
+					child.vpnSpnMap.put(vpn, spn);
+					VMKernel.swapRefCounts.put(spn, VMKernel.swapRefCounts.get(spn) + 1);
+				}
+			}
+		}
+		VMKernel.swapLock.release();
+		VMKernel.managerLock.release();
+	}
+
+	/**
+	 * Give this process a private, writable copy of copy-on-write page
+	 * <i>vpn</i>, faulting it in if it was evicted. The last process sharing
+	 * a frame just gets write access back.
+	 *
+	 * @return <tt>true</tt> if the page is now writable, or <tt>false</tt> if
+	 * no frame could be had for the copy, in which case the page is left
+	 * shared.
+	 */
+	private boolean copyOnWrite(int vpn) {
+		VMKernel.managerLock.acquire();
+		TranslationEntry entry = pageTable[vpn];
+		if (!entry.valid) {
+			// evicted meanwhile, faulting it in makes a private page
+			VMKernel.managerLock.release();
+			handlePageFault(Processor.makeAddress(vpn, 0));
+			return pageTable[vpn].valid;
+		}
+		cowPages.remove(vpn);
+		int ppn = entry.ppn;
+		if (VMKernel.manager[ppn].getRefCount() == 1) {
+			entry.readOnly = false;
+			VMKernel.managerLock.release();
+			return true;
+		}
+
+		// keep the shared frame from being chosen as the victim
+		setPin(ppn);
+		int newPpn = allocateFrame(false);
+		releasePin(ppn);
+		if (newPpn < 0) {
+			cowPages.add(vpn);
+			VMKernel.managerLock.release();
+			return false;
+		}
+		byte[] memory = Machine.processor().getMemory();
+		System.arraycopy(memory, Processor.makeAddress(ppn, 0), memory, Processor.makeAddress(newPpn, 0), pageSize);
+		VMKernel.manager[ppn].unshare(this);
+		TranslationEntry copy = new TranslationEntry(vpn, newPpn, true, false, true, true);
+		pageTable[vpn] = copy;
+		VMKernel.manager[newPpn].map(copy, this);
+		VMKernel.managerLock.release();
+		return true;
+	}
+
+	/**
+	 * Handle the munmap() system call.
+	 *
+	 * Write back the dirty pages of the mapping that starts at address and
+	 * remove it. The file descriptor can be read and written again.
+	 *
+	 * Returns 0 on success, or -1 if no mapping starts at address.
+	 */
+	private int handleMunmap(int address) {
+		for (Mapping mapping : mappings) {
+			if (Processor.makeAddress(mapping.firstVPN, 0) == address) {
+				unmap(mapping);
+				return 0;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Return the mapping made through <i>fileDescriptor</i>, or
+	 * <tt>null</tt>.
+	 */
+	private Mapping findMapping(int fileDescriptor) {
+		for (Mapping mapping : mappings)
+			if (mapping.fileDescriptor == fileDescriptor)
+				return mapping;
+		return null;
+	}
+
+	/**
+	 * Return the mapping that covers virtual page <i>vpn</i>, or
+	 * <tt>null</tt>.
+	 */
+	private Mapping mappingFor(int vpn) {
+		for (Mapping mapping : mappings)
+			if (vpn >= mapping.firstVPN
+					&& vpn < mapping.firstVPN + mapping.numPages)
+				return mapping;
+		return null;
+	}
+
+	/**
+	 * Write back <i>mapping</i>, free its frames and remove its pages from the
+	 * page table.
+	 */
+	private void unmap(Mapping mapping) {
+		flushMapping(mapping, true);
+		mappings.remove(mapping);
+	}
+
+	/**
+	 * Write every dirty resident page of <i>mapping</i> back to its file. If
+	 * <i>release</i> is set, also free the frames and remove the pages.
+	 */
+	private void flushMapping(Mapping mapping, boolean release) {
+		VMKernel.managerLock.acquire();
+		int[] freed = new int[mapping.numPages];
+		int numFreed = 0;
+		for (int vpn = mapping.firstVPN; vpn < mapping.firstVPN
+				+ mapping.numPages; vpn++) {
+			TranslationEntry entry = pageTable[vpn];
+			if (entry.valid) {
+				if (entry.dirty) {
+					writeBack(mapping, vpn, entry.ppn);
+					entry.dirty = false;
+				}
+				if (release) {
+					entry.valid = false;
+					VMKernel.manager[entry.ppn].unshare(this);
+					freed[numFreed++] = entry.ppn;
+				}
+			}
+			if (release)
+				pageTable[vpn] = null;
+		}
+		VMKernel.managerLock.release();
+
+		if (numFreed > 0) {
+			UserKernel.pagesAvailableMutex.acquire();
+			UserKernel.pagesAvailable.free(freed, numFreed);
+			UserKernel.pagesAvailableMutex.release();
+		}
+		// the write-backs are done; an image cached meanwhile may be stale
+		fileChanged(mapping.file.getName());
+	}
+
+	/**
+	 * Copy frame <i>ppn</i>, holding page <i>vpn</i> of <i>mapping</i>, back
+	 * to the file. Only the bytes inside the file are written, so the file
+	 * never grows.
+	 */
+	private void writeBack(Mapping mapping, int vpn, int ppn) {
+		int pos = (vpn - mapping.firstVPN) * pageSize;
+		int amount = Math.min(pageSize, mapping.length - pos);
+		Lib.debug(dbgVM, "Writing back vpn " + vpn + " to "
+				+ mapping.file.getName() + " at " + pos);
+		mapping.file.write(pos, Machine.processor().getMemory(),
+				Processor.makeAddress(ppn, 0), amount);
+	}
+
+	/**
+	 * Fill frame <i>ppn</i> with page <i>vpn</i> of <i>mapping</i>, zeroing
+	 * whatever lies past the end of the file.
+	 */
+	private void loadMapped(Mapping mapping, int vpn, int ppn) {
+		int pos = (vpn - mapping.firstVPN) * pageSize;
+		int paddr = Processor.makeAddress(ppn, 0);
+		byte[] memory = Machine.processor().getMemory();
+		int read = mapping.file.read(pos, memory, paddr,
+				Math.min(pageSize, mapping.length - pos));
+		Arrays.fill(memory, paddr + Math.max(read, 0), paddr + pageSize,
+				(byte) 0);
+	}
+
 
 	/**
 	 * Being called when a page fault is detected, trap into OS
@@ -83,24 +497,39 @@ public class VMProcess extends UserProcess {
 		} else {
 			readOnly = section.isReadOnly();
 		}
-		int ppn = -1;
-		// Acquire lock for shared data structure
-		VMKernel.pagesAvailableMutex.acquire();
-		// Check if there's no free physical pages
-		if (UserKernel.pagesAvailable.isEmpty()) {
-			System.out.println("Run out of physical memory without swap vpn: " + vpn);
-			ppn = evictPage();
-			if (ppn < 0) {
-				System.out.println("Evict unsuccessful!");
-				VMKernel.pagesAvailableMutex.release();
+		// read-only program pages already loaded by another process are shared
+		String sharedKey = null;
+		if (readOnly && !pageTable[vpn].dirty) {
+			sharedKey = VMKernel.sharedPageKey(executableName, vpn);
+			Integer shared = VMKernel.sharedPages.get(sharedKey);
+			if (shared != null) {
+				TranslationEntry translationEntry = new TranslationEntry(vpn, shared, true, true, true, false);
+				pageTable[vpn] = translationEntry;
+				VMKernel.manager[shared].share(translationEntry, this);
+				VMKernel.managerLock.release();
 				return;
 			}
-		} else {
-			// Allocate new physical page
-			ppn = UserKernel.pagesAvailable.remove();
-
 		}
-		VMKernel.pagesAvailableMutex.release();
+		// Mapped file pages come straight from the file
+		Mapping mapping = mappingFor(vpn);
+		boolean zeroFill = mapping == null && section == null && !pageTable[vpn].dirty;
+		int ppn = allocateFrame(zeroFill);
+		if (ppn < 0) {
+			VMKernel.managerLock.release();
+			return;
+		}
+		// a frame from the pre-zeroed pool needs no work
+		boolean zeroed = VMKernel.manager[ppn].isZeroed();
+		// a fresh frame is private, whatever was shared before
+		cowPages.remove(vpn);
+		if (mapping != null) {
+			TranslationEntry translationEntry = new TranslationEntry(vpn, ppn, true, false, true, false);
+			pageTable[vpn] = translationEntry;
+			loadMapped(mapping, vpn, ppn);
+			VMKernel.manager[ppn].map(translationEntry, this);
+			VMKernel.managerLock.release();
+			return;
+		}
 		// Initialize translationEntry
 		boolean dirty = pageTable[vpn].dirty;
 		System.out.println("Newly assigned ppn: " + ppn);
@@ -112,18 +541,50 @@ public class VMProcess extends UserProcess {
 		} else {
 			if (section != null) {
 				section.loadPage(sectionPageNumber, ppn);
+			} else if (zeroed) {
+				Machine.stats().numZeroFillHits++;
 			} else {
 				fillWithZero(ppn);
+				Machine.stats().numZeroFillMisses++;
 			}
 		}
 		if (readOnly) {
 			System.out.println("Page with vpn [" + translationEntry.vpn + "], ppn [" + translationEntry.ppn + "] is read only");
 		}
-		VMKernel.manager[ppn].setEntry(translationEntry);
-		VMKernel.manager[ppn].setProcess(this);
+		VMKernel.manager[ppn].map(translationEntry, this);
+		if (sharedKey != null) {
+			VMKernel.sharedPages.put(sharedKey, ppn);
+			VMKernel.manager[ppn].setSharedKey(sharedKey);
+		}
 		VMKernel.managerLock.release();
 	}
 
+	/**
+	 * Take a free frame, evicting a page if there is none. The caller must
+	 * hold <tt>managerLock</tt>.
+	 *
+	 * @param zeroFill whether the page will be zero-filled, in which case a
+	 * pre-zeroed frame is preferred.
+	 * @return the frame's ppn, or -1 if none could be had.
+	 */
+	private int allocateFrame(boolean zeroFill) {
+		int ppn = -1;
+		// Acquire lock for shared data structure
+		VMKernel.pagesAvailableMutex.acquire();
+		// Allocate new physical page
+		ppn = VMKernel.takeFrame(zeroFill);
+		// Check if there's no free physical pages
+		if (ppn < 0) {
+			System.out.println("Run out of physical memory without swap");
+			ppn = evictPage();
+			if (ppn < 0) {
+				System.out.println("Evict unsuccessful!");
+			}
+		}
+		VMKernel.pagesAvailableMutex.release();
+		return ppn;
+	}
+
 	private Pair sectionFinder(int badVaddr) {
 		int vpnCounter = 0;
 		// Case1
@@ -162,13 +623,18 @@ public class VMProcess extends UserProcess {
 			System.out.println("handleSwapIn: SPN table does not contain this vpn! Check for concurrency issue!");
 		}
 		VMKernel.swapFile.read( spn* pageSize, Machine.processor().getMemory(), Processor.makeAddress(ppn, 0), pageSize);
-		VMKernel.swapPages.add(spn);
+		// the slot may still hold the page for a process forked from us
+		VMKernel.releaseSwap(spn);
 		vpnSpnMap.remove(vpn);
 		VMKernel.swapLock.release();
 	}
 
-	private void handleSwapOut(int vpn, int ppn) {
-		System.out.println("Swapping out! victim's vpn: [" + vpn + "]," + "ppn: [" + ppn + "]");
+	/**
+	 * Write frame <i>ppn</i> to a free swap slot and record the slot for every
+	 * process mapping the frame.
+	 */
+	private void handleSwapOut(int ppn) {
+		System.out.println("Swapping out! victim's ppn: [" + ppn + "]");
 		VMKernel.swapLock.acquire();
 		int spn = 0;
 		if (VMKernel.swapPages.isEmpty()) {
@@ -183,44 +649,47 @@ public class VMProcess extends UserProcess {
 		System.out.println("handleSwapOut: spn [" + spn + "]");
 		// swap out page
 		VMKernel.swapFile.write(spn * pageSize, Machine.processor().getMemory(), Processor.makeAddress(ppn, 0), pageSize);
-		// update map of the corresponding process
-		VMKernel.manager[ppn].getProcess().vpnSpnMap.put(vpn, spn);
+		// update map of the corresponding processes
+		VMKernel.pageManager frame = VMKernel.manager[ppn];
+		for (int i = 0; i < frame.getRefCount(); i++) {
+			frame.getProcesses().get(i).vpnSpnMap.put(frame.getEntries().get(i).vpn, spn);
+		}
+		VMKernel.swapRefCounts.put(spn, frame.getRefCount());
 		VMKernel.swapLock.release();
 	}
 
 	private void fillWithZero(int ppn) {
-		byte[] data = new byte[pageSize];
-		Arrays.fill(data, (byte) 0);
-		System.arraycopy(data, 0, Machine.processor().getMemory(), Processor.makeAddress(ppn, 0), pageSize);
+		int paddr = Processor.makeAddress(ppn, 0);
+		Arrays.fill(Machine.processor().getMemory(), paddr, paddr + pageSize, (byte) 0);
 	}
 
 	private int victimFinder() {
-		// clock
-		int ppn = 0;
-		for (int i = 0; i < Machine.processor().getNumPhysPages(); i++) {
+		// clock, going round until an owned, unpinned, unused frame turns up
+		int numPhysPages = Machine.processor().getNumPhysPages();
+		for (int n = 0; ; n++) {
+			int i = n % numPhysPages;
 			System.out.println("Iterating victim ppn: " + i + "...");
 			if (VMKernel.manager[i].getPinStatus()) {
 				System.out.println("Page pinned! ppn: " + i);
 				// check if all pages are pinned
-				if (VMKernel.numPagesPinned == numPages) {
+				VMKernel.pinLock.acquire();
+				while (VMKernel.numPagesPinned == numPhysPages) {
 					System.out.println("All pages are pinned, process" + pid + " sleep on CV!");
-					// make the process sleep on CV
+					// make the process sleep on CV, releasePin() hands the lock back
 					VMKernel.pinCV.sleep();
 				}
+				VMKernel.pinLock.release();
 				continue;
 			}
-			TranslationEntry entry = VMKernel.manager[i].getEntry();
-			if (!entry.used) {
-				ppn = i;
-				break;
+			// a frame without owners is free or being zeroed, not evictable
+			if (VMKernel.manager[i].getRefCount() == 0) {
+				continue;
 			}
-			entry.used = false;
-			VMKernel.manager[i].setEntry(entry);
-			if (i == Machine.processor().getNumPhysPages() - 1) {
-				i = 0;
+			if (!VMKernel.manager[i].isUsed()) {
+				return i;
 			}
+			VMKernel.manager[i].clearUsed();
 		}
-		return ppn;
 	}
 
 	/**
@@ -236,14 +705,30 @@ public class VMProcess extends UserProcess {
 		TranslationEntry tempEntry = VMKernel.manager[ppn].getEntry();
 		vpn = tempEntry.vpn;
 		ppn = tempEntry.ppn;
-		tempEntry.valid = false;
-		Lib.assertTrue(tempEntry.valid == VMKernel.manager[ppn].getEntry().valid);
+		// a shared frame is taken from every process mapping it
+		VMKernel.forgetSharedPage(ppn);
+		boolean dirty = false;
+		for (TranslationEntry entry : VMKernel.manager[ppn].getEntries()) {
+			entry.valid = false;
+			dirty |= entry.dirty;
+		}
 		System.out.println("Target victim's vpn: [" + vpn + "]," + "ppn: [" + ppn + "]");
 		// start to evict the page
 		// check of page is dirty
-		if (tempEntry.dirty) {
-			// swap out dirty page
-			handleSwapOut(vpn, ppn);
+		VMProcess owner = VMKernel.manager[ppn].getProcess();
+		Mapping mapping = owner.mappingFor(vpn);
+		if (mapping != null) {
+			// mapped pages go back to their file, never to swap
+			if (tempEntry.dirty) {
+				owner.writeBack(mapping, vpn, ppn);
+				tempEntry.dirty = false;
+			}
+		} else if (dirty) {
+			// swap out dirty page, once for all its owners
+			handleSwapOut(ppn);
+			for (TranslationEntry entry : VMKernel.manager[ppn].getEntries()) {
+				entry.dirty = true;
+			}
 		}
 		// processing complete, exit loop
 		System.out.println("Eviction successful!");
@@ -251,20 +736,79 @@ public class VMProcess extends UserProcess {
 	}
 
 	private void setPin(int ppn) {
-		VMKernel.pinLock.acquire();
-		VMKernel.manager[ppn].setPinStatus(true);
-		VMKernel.numPagesPinned++;
-		VMKernel.pinLock.release();
-		System.out.println("Set pin done on ppn: " + ppn + " by process " + VMKernel.manager[ppn].getProcess().pid);
+		VMKernel.pinFrame(ppn);
+		Lib.debug(dbgVM, "Set pin done on ppn: " + ppn + " by process " + VMKernel.manager[ppn].getProcess().pid);
 	}
 
 	private void releasePin(int ppn) {
-		VMKernel.pinLock.acquire();
-		VMKernel.manager[ppn].setPinStatus(false);
-		VMKernel.numPagesPinned--;
-		VMKernel.pinCV.wake();
-		VMKernel.pinLock.release();
-		System.out.println("Release pin done on ppn: " + ppn + " by process " + VMKernel.manager[ppn].getProcess().pid);
+		VMKernel.unpinFrame(ppn);
+		Lib.debug(dbgVM, "Release pin done on ppn: " + ppn + " by process " + VMKernel.manager[ppn].getProcess().pid);
+	}
+
+	/**
+	 * Return true if this process may write to virtual page <i>vpn</i>,
+	 * including copy-on-write pages and program pages not loaded yet.
+	 */
+	protected boolean isWritable(int vpn) {
+		TranslationEntry entry = pageTable[vpn];
+		if (entry == null)
+			return false;
+		// copy-on-write pages are read-only only until they are written
+		if (entry.readOnly)
+			return cowPages.contains(vpn);
+		// a program page not yet faulted in has its section's protection
+		for (int s = 0; s < coff.getNumSections(); s++) {
+			CoffSection section = coff.getSection(s);
+			if (vpn >= section.getFirstVPN()
+					&& vpn < section.getFirstVPN() + section.getLength())
+				return !section.isReadOnly();
+		}
+		return true;
+	}
+
+	/**
+	 * Fault in virtual page <i>vpn</i> if necessary and pin its frame so it
+	 * cannot be evicted during a direct transfer.
+	 */
+	protected int pinPage(int vpn, boolean write) {
+		if (vpn < 0 || vpn >= pageTable.length)
+			return -1;
+		while (true) {
+			TranslationEntry entry = pageTable[vpn];
+			if (entry == null)
+				return -1;
+			if (!entry.valid) {
+				handlePageFault(Processor.makeAddress(vpn, 0));
+				entry = pageTable[vpn];
+				if (entry == null)
+					return -1;
+			}
+			if (write && entry.readOnly && cowPages.contains(vpn)) {
+				if (!copyOnWrite(vpn))
+					return -1;
+				entry = pageTable[vpn];
+			}
+			if (write && entry.readOnly)
+				return -1;
+
+			// evictions happen under managerLock, so a page that is still
+			// mapped here stays put once pinned
+			VMKernel.managerLock.acquire();
+			if (pageTable[vpn] == entry && entry.valid) {
+				setPin(entry.ppn);
+				entry.used = true;
+				if (write)
+					entry.dirty = true;
+				VMKernel.managerLock.release();
+				return entry.ppn;
+			}
+			VMKernel.managerLock.release();
+			// evicted before it could be pinned, fault it in again
+		}
+	}
+
+	protected void unpinPage(int ppn) {
+		releasePin(ppn);
 	}
 
 	/**
@@ -313,6 +857,9 @@ public class VMProcess extends UserProcess {
 			return 0;
 		}
 		TranslationEntry entry = pageTable[initialVPN];
+		if (entry == null) {
+			return 0;
+		}
 		int pageOffset = Processor.offsetFromAddress(vaddr);
 		int paddr = entry.ppn * pageSize + pageOffset;
 		int amount = 0;
@@ -352,10 +899,14 @@ public class VMProcess extends UserProcess {
 			// release pin
 			System.out.println("readVirtualMemory: Releasing pin after reading");
 			releasePin(entry.ppn);
+			// update cumulative variables before looking at the next page,
+			// which may lie past the end of the address space
+			offset += amount;
+			totalRead += amount;
 			// update vaddr->entry->pageOffset->paddr
 			vaddr += amount;
 			int curVPN = Processor.pageFromAddress(vaddr);
-			if (curVPN >= pageTable.length) {
+			if (curVPN >= pageTable.length || pageTable[curVPN] == null) {
 				System.out.println("invalid vpn out of bounds, vpn: " + curVPN + "maximum: " + pageTable.length + "length: " + length + "total read: " + totalRead);
 				return totalRead;
 			}
@@ -363,9 +914,6 @@ public class VMProcess extends UserProcess {
 			System.out.println("readVirtualMemory: VPN after updating: " + entry.vpn);
 			pageOffset = Processor.offsetFromAddress(vaddr);
 			paddr = entry.ppn * pageSize + pageOffset;
-			// update cumulative variables
-			offset += amount;
-			totalRead += amount;
 		}
 		return totalRead;
 	}
@@ -419,6 +967,9 @@ public class VMProcess extends UserProcess {
 			return 0;
 		}
 		TranslationEntry entry = pageTable[initialVPN];
+		if (entry == null) {
+			return 0;
+		}
 		int pageOffset = Processor.offsetFromAddress(vaddr);
 		int paddr = entry.ppn * pageSize + pageOffset;
 		int amount = 0;
@@ -450,6 +1001,16 @@ public class VMProcess extends UserProcess {
 				releasePin(entry.ppn);
 				return totalWrite;
 			}
+			// a copy-on-write page gets a private copy first
+			if (entry.readOnly && cowPages.contains(entry.vpn)) {
+				releasePin(entry.ppn);
+				if (!copyOnWrite(entry.vpn)) {
+					return totalWrite;
+				}
+				entry = pageTable[entry.vpn];
+				paddr = entry.ppn * pageSize + pageOffset;
+				setPin(entry.ppn);
+			}
 			// check if the page is read_only
 			if (entry.readOnly) {
 				System.out.println("writeVirtualMemory: Read-Only page, vpn: "+ entry.vpn + " ppn: " + entry.ppn + " ,aborting!");
@@ -467,10 +1028,14 @@ public class VMProcess extends UserProcess {
 			releasePin(entry.ppn);
 			// update used bit (Proj3 part2)
 			entry.dirty = true;
+			// update cumulative variables before looking at the next page,
+			// which may lie past the end of the address space
+			offset += amount;
+			totalWrite += amount;
 			// update vaddr->entry->pageOffset->paddr
 			vaddr += amount;
 			int curVPN = Processor.pageFromAddress(vaddr);
-			if (curVPN >= pageTable.length) {
+			if (curVPN >= pageTable.length || pageTable[curVPN] == null) {
 				System.out.println("invalid vpn out of bounds, vpn: " + curVPN + "maximum: " + pageTable.length);
 				return totalWrite;
 			}
@@ -478,9 +1043,6 @@ public class VMProcess extends UserProcess {
 			System.out.println("readVirtualMemory: VPN after updating: " + entry.vpn);
 			pageOffset = Processor.offsetFromAddress(vaddr);
 			paddr = entry.ppn * pageSize + pageOffset;
-			// update cumulative variables
-			offset += amount;
-			totalWrite += amount;
 		}
 		System.out.println("writeVirtualMemory: total written to VM: [" + totalWrite + "], exit now.");
 		return totalWrite;
@@ -499,7 +1061,26 @@ public class VMProcess extends UserProcess {
 		switch (cause) {
 		case Processor.exceptionPageFault:
 			System.out.println("Process" + pid + " call handlePageFault from handleException");
-			handlePageFault(processor.readRegister(Processor.regBadVAddr));
+			int badVaddr = processor.readRegister(Processor.regBadVAddr);
+			int badVpn = Processor.pageFromAddress(badVaddr);
+			if (badVpn >= pageTable.length || pageTable[badVpn] == null) {
+				// a hole below a mapping, or an unmapped page
+				super.handleException(cause);
+				break;
+			}
+			handlePageFault(badVaddr);
+			break;
+		case Processor.exceptionReadOnly:
+			int vpn = Processor.pageFromAddress(processor.readRegister(Processor.regBadVAddr));
+			if (!cowPages.contains(vpn)) {
+				super.handleException(cause);
+				break;
+			}
+			// retry the store once the page is private; with no frame to
+			// copy it into, the store can never succeed
+			if (!copyOnWrite(vpn)) {
+				super.handleException(cause);
+			}
 			break;
 		default:
 			super.handleException(cause);
@@ -507,6 +1088,104 @@ public class VMProcess extends UserProcess {
 		}
 	}
 
+	/**
+	 * Test copy-on-write after fork, swap slots shared by forked processes,
+	 * and writing a mapped file back when it is unmapped. Uses processes that
+	 * are never started and whose program has no sections, so every page
+	 * starts out zero-filled.
+	 */
+	public static void selfTest() {
+		// more pages than fit in memory, so some are out in swap
+		int numPages = Machine.processor().getNumPhysPages() + 4;
+		VMProcess parent = newTestProcess(numPages);
+		for (int vpn = 0; vpn < numPages; vpn++)
+			fillPage(parent, vpn, vpn);
+		Lib.assertTrue(!parent.vpnSpnMap.isEmpty());
+
+		// the child shares every page, and every swapped-out page's slot
+		VMProcess child = newTestProcess(numPages);
+		parent.shareAddressSpace(child);
+		VMKernel.swapLock.acquire();
+		for (int spn : parent.vpnSpnMap.values())
+			Lib.assertTrue(VMKernel.swapRefCounts.get(spn) == 2);
+		VMKernel.swapLock.release();
+		int resident = 0;
+		while (!parent.pageTable[resident].valid)
+			resident++;
+		Lib.assertTrue(VMKernel.manager[parent.pageTable[resident].ppn].getRefCount() == 2);
+
+		// writes by either process are private to it
+		fillPage(parent, resident, 200);
+		checkPage(child, resident, resident);
+		for (int vpn = 0; vpn < numPages; vpn += 2)
+			fillPage(child, vpn, vpn + 100);
+		for (int vpn = 0; vpn < numPages; vpn++) {
+			checkPage(parent, vpn, vpn == resident ? 200 : vpn);
+			checkPage(child, vpn, vpn % 2 == 0 ? vpn + 100 : vpn);
+		}
+
+		// what is written through a mapping reaches the file by munmap()
+		String name = "vmselftest.dat";
+		byte[] contents = new byte[2 * pageSize + 100];
+		OpenFile file = ThreadedKernel.fileSystem.open(name, true);
+		Lib.assertTrue(file != null);
+		Lib.assertTrue(file.write(contents, 0, contents.length) == contents.length);
+		int fd = parent.fileDescriptors.add(file);
+		int address = Processor.makeAddress(numPages + 1, 0);
+		Lib.assertTrue(parent.handleMmap(fd, address) == contents.length);
+		byte[] data = new byte[pageSize];
+		Arrays.fill(data, (byte) 'm');
+		Lib.assertTrue(parent.writeVirtualMemory(address + pageSize / 2, data) == pageSize);
+		Lib.assertTrue(parent.handleMunmap(address) == 0);
+		Lib.assertTrue(parent.handleMunmap(address) == -1);
+		Lib.assertTrue(file.read(0, contents, 0, contents.length) == contents.length);
+		for (int i = 0; i < contents.length; i++) {
+			boolean written = i >= pageSize / 2 && i < pageSize / 2 + pageSize;
+			Lib.assertTrue(contents[i] == (written ? (byte) 'm' : 0));
+		}
+		parent.fileDescriptors.close(fd);
+		ThreadedKernel.fileSystem.remove(name);
+
+		// the last process to let go of a swap slot frees it
+		child.unloadSections();
+		parent.unloadSections();
+		VMKernel.swapLock.acquire();
+		Lib.assertTrue(VMKernel.swapRefCounts.isEmpty());
+		VMKernel.swapLock.release();
+		child.releaseTestPid();
+		parent.releaseTestPid();
+	}
+
+	/**
+	 * Make a process for <tt>selfTest()</tt> with <i>numPages</i> pages, none
+	 * of them loaded yet.
+	 */
+	private static VMProcess newTestProcess(int numPages) {
+		VMProcess process = new VMProcess();
+		process.coff = new Coff() {
+			{
+				sections = new CoffSection[0];
+			}
+		};
+		process.executableName = "selfTest";
+		process.numPages = numPages;
+		Lib.assertTrue(process.loadSections());
+		return process;
+	}
+
+	private static void fillPage(VMProcess process, int vpn, int value) {
+		byte[] page = new byte[pageSize];
+		Arrays.fill(page, (byte) value);
+		Lib.assertTrue(process.writeVirtualMemory(Processor.makeAddress(vpn, 0), page) == pageSize);
+	}
+
+	private static void checkPage(VMProcess process, int vpn, int value) {
+		byte[] page = new byte[pageSize];
+		Lib.assertTrue(process.readVirtualMemory(Processor.makeAddress(vpn, 0), page) == pageSize);
+		for (int i = 0; i < pageSize; i++)
+			Lib.assertTrue(page[i] == (byte) value);
+	}
+
 	private static final int pageSize = Processor.pageSize;
 
 	private static final char dbgProcess = 'a';
@@ -515,6 +1194,41 @@ public class VMProcess extends UserProcess {
 
 	private HashMap<Integer, Integer> vpnSpnMap;
 
+	/** Pages that are read-only only because they are shared after fork(). */
+	private HashSet<Integer> cowPages = new HashSet<Integer>();
+
+	/** Largest address space, in pages, a mapping may extend to. */
+	private static final int maxVirtualPages = 0x10000;
+
+	/** Files mapped by mmap(). */
+	private LinkedList<Mapping> mappings = new LinkedList<Mapping>();
+
+	/**
+	 * A file mapped into consecutive virtual pages. Page <i>i</i> of the
+	 * mapping holds bytes <tt>i * pageSize</tt> onward of the file.
+	 */
+	private static class Mapping {
+		Mapping(int fileDescriptor, OpenFile file, int firstVPN,
+				int numPages, int length) {
+			this.fileDescriptor = fileDescriptor;
+			this.file = file;
+			this.firstVPN = firstVPN;
+			this.numPages = numPages;
+			this.length = length;
+		}
+
+		int fileDescriptor;
+
+		OpenFile file;
+
+		int firstVPN;
+
+		int numPages;
+
+		/** Length of the file when it was mapped. */
+		int length;
+	}
+
 	private static class Pair {
 		private CoffSection section;
 		private int sectionPageNumber;